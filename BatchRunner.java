@@ -0,0 +1,225 @@
+// This file simulates many games at once, to balance the difficulty levels
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs thousands of independent headless games on all cores, with a scripted or random player,
+ * and reports survival rounds, score and simulation speed per difficulty level.
+ * Games share no mutable state, so throughput grows with the number of cores.
+ * Usage: java BatchRunner [--games n] [--threads n] [--seed n] [--policy random|sweep] [--max-ticks n]
+ */
+public class BatchRunner
+{
+    private static final int levels = 4;
+
+    /**
+     * The outcome of one game
+     */
+    private static class Result
+    {
+        final int level;
+        final int rounds;
+        final int score;
+        final long ticks;
+        final long nanos;
+        final boolean survived; // still alive when the tick limit was reached
+
+        Result(int level, int rounds, int score, long ticks, long nanos, boolean survived)
+        {
+            this.level = level;
+            this.rounds = rounds;
+            this.score = score;
+            this.ticks = ticks;
+            this.nanos = nanos;
+            this.survived = survived;
+        }
+    }
+
+    /**
+     * A player pressing random controls, each held for a few ticks like a human would
+     */
+    static class RandomPolicy implements Renderer.ControlSource
+    {
+        private final SplittableRandom rand;
+        private int move = -1;
+        private int hold = 0;
+
+        RandomPolicy(long seed){rand = new SplittableRandom(seed);}
+
+        @Override
+        public boolean next(boolean[] control)
+        {
+            if(hold-- <= 0)
+            {
+                move = rand.nextInt(5) - 1; // -1 for no move, else UP DOWN LEFT RIGHT
+                hold = rand.nextInt(2, 12);
+            }
+            for(int i = 0; i < 4; i++)
+                control[i] = (i == move);
+            control[4] = rand.nextInt(4) != 0;
+            return true;
+        }
+    }
+
+    /**
+     * A player sweeping from one side to the other while shooting all the time
+     */
+    private static class SweepPolicy implements Renderer.ControlSource
+    {
+        private final int width;
+        private int position;
+        private boolean right = true;
+
+        SweepPolicy(long seed, int width)
+        {
+            this.width = width;
+            position = new SplittableRandom(seed).nextInt(width);
+        }
+
+        @Override
+        public boolean next(boolean[] control)
+        {
+            if(position <= 0) right = true;
+            if(position >= width) right = false;
+            position += right ? 1 : -1;
+            control[0] = false;
+            control[1] = false;
+            control[2] = !right;
+            control[3] = right;
+            control[4] = true;
+            return true;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        System.setProperty("java.awt.headless", "true");
+        int games = intOption(args, "--games", 1000);
+        int threads = intOption(args, "--threads", Runtime.getRuntime().availableProcessors());
+        long seed = longOption(args, "--seed", 1);
+        int maxTicks = intOption(args, "--max-ticks", 100000);
+        String policy = stringOption(args, "--policy", "random");
+        if(games < 1 || threads < 1)
+        {
+            System.out.println("Usage: java BatchRunner --games n --threads n, both at least 1");
+            return;
+        }
+        if(!policy.equals("random") && !policy.equals("sweep"))
+        {
+            System.out.println("Unknown policy " + policy + ", use random or sweep");
+            return;
+        }
+
+        // one task per game, so that long and short games balance out over the workers
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> futures = new ArrayList<>(games * levels);
+        SplittableRandom seeds = new SplittableRandom(seed);
+        long tStart = System.nanoTime();
+        for(int level = 0; level < levels; level++)
+        {
+            for(int i = 0; i < games; i++)
+            {
+                final int gameLevel = level;
+                final long gameSeed = seeds.nextLong();
+                final long policySeed = seeds.nextLong();
+                futures.add(pool.submit(() -> play(gameLevel, gameSeed, policy, policySeed, maxTicks)));
+            }
+        }
+        List<Result> results = new ArrayList<>(futures.size());
+        try
+        {
+            for(Future<Result> future : futures)
+                results.add(future.get());
+        }catch(ExecutionException e)
+        {
+            System.out.println("A game failed: " + e.getCause());
+            pool.shutdownNow();
+            return;
+        }
+        long wallNanos = System.nanoTime() - tStart;
+        pool.shutdown();
+        report(results, games, threads, policy, maxTicks, wallNanos);
+    }
+
+    /**
+     * Play one game until game over or the tick limit
+     * @param level
+     * @param seed game seed
+     * @param policy name of the player policy
+     * @param policySeed seed of the player policy
+     * @param maxTicks
+     * @return Result
+     */
+    private static Result play(int level, long seed, String policy, long policySeed, int maxTicks)
+    {
+        Renderer game = new Renderer(level, true, seed);
+        game.setControlSource(policy.equals("sweep") ? new SweepPolicy(policySeed, game.getMaxPosX())
+            : new RandomPolicy(policySeed));
+        long tStart = System.nanoTime();
+        game.loopHeadless(maxTicks);
+        long nanos = System.nanoTime() - tStart;
+        return new Result(level, game.getRounds(), game.getScore(), game.getTicks(), nanos, !game.isGameOver());
+    }
+
+    /**
+     * Print the statistics of every level
+     */
+    private static void report(List<Result> results, int games, int threads, String policy, int maxTicks, long wallNanos)
+    {
+        System.out.printf("%d games per level, %s policy, at most %d ticks, %d threads%n", games, policy, maxTicks, threads);
+        System.out.printf("%-6s %10s %8s %8s %10s %12s %10s %14s%n",
+            "level", "rounds", "p50", "max", "score", "ticks", "survived", "ticks/s/game");
+        long totalTicks = 0;
+        for(int level = 0; level < levels; level++)
+        {
+            int[] rounds = new int[games];
+            int count = 0;
+            long score = 0, ticks = 0, nanos = 0, survived = 0;
+            for(Result result : results)
+            {
+                if(result.level != level) continue;
+                rounds[count++] = result.rounds;
+                score += result.score;
+                ticks += result.ticks;
+                nanos += result.nanos;
+                if(result.survived) survived++;
+            }
+            Arrays.sort(rounds, 0, count);
+            long roundSum = 0;
+            for(int i = 0; i < count; i++) roundSum += rounds[i];
+            System.out.printf("%-6d %10.2f %8d %8d %10.1f %12.0f %9.1f%% %14.0f%n",
+                level, (double)roundSum / count, rounds[count / 2], rounds[count - 1],
+                (double)score / count, (double)ticks / count, 100.0 * survived / count,
+                (nanos > 0) ? ticks * 1e9 / nanos : 0);
+            totalTicks += ticks;
+        }
+        System.out.printf("Simulated %d ticks in %.2f s, %.0f ticks per second in total%n",
+            totalTicks, wallNanos / 1e9, totalTicks * 1e9 / wallNanos);
+    }
+
+    private static int intOption(String[] args, String name, int defaultValue)
+    {
+        String value = stringOption(args, name, null);
+        return (value != null) ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static long longOption(String[] args, String name, long defaultValue)
+    {
+        String value = stringOption(args, name, null);
+        return (value != null) ? Long.parseLong(value) : defaultValue;
+    }
+
+    private static String stringOption(String[] args, String name, String defaultValue)
+    {
+        for(int i = 0; i < args.length - 1; i++)
+            if(args[i].equals(name)) return args[i+1];
+        return defaultValue;
+    }
+}
@@ -0,0 +1,256 @@
+// This file measures the simulation and rendering hot paths
+
+import java.util.Arrays;
+import java.util.Random;
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+
+/**
+ * A small benchmark harness for the hot paths of the game, without any dependency.
+ * Every benchmark is warmed up first, then measured in several rounds, and reported in nanoseconds per operation:
+ * the median of the rounds, and the median absolute deviation from it.
+ * Usage: java Benchmark [name filter]
+ */
+public class Benchmark
+{
+    private static final int warmupRounds = 10;
+    private static final int measureRounds = 10;
+    private static final long roundNanos = 100000000L; // length of a round
+    private static final int[] enemyCounts = {5, 20, 80};
+    private static final int[] bulletCounts = {0, 500};
+
+    // the results of the operations are folded in here so that the JIT cannot drop the measured work
+    static volatile long sink;
+
+    /**
+     * A measured operation
+     */
+    interface Op
+    {
+        /**
+         * @return a result of the work, e.g. a count of what is left after it
+         */
+        long run();
+    }
+
+    /**
+     * Preparation of a measured operation, not timed
+     */
+    interface Prepare
+    {
+        void run();
+    }
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        String filter = (args.length > 0) ? args[0] : "";
+        System.out.printf("%-52s %14s %14s%n", "benchmark", "ns/op", "deviation");
+        for(int enemies : enemyCounts)
+            for(int bullets : bulletCounts)
+                benchProcessLogic(filter, enemies, bullets, false);
+        for(int bullets : bulletCounts)
+            benchProcessLogic(filter, 1, bullets, true);
+        benchBackground(filter);
+        for(int enemies : enemyCounts)
+            benchCollision(filter, enemies, 500, false);
+        benchCollision(filter, 1, 500, true);
+        for(int enemies : enemyCounts)
+            benchSpawn(filter, enemies);
+        benchPaint(filter, 20, 500, false);
+        benchPaint(filter, 1, 500, true);
+        benchSwarm(filter, 2000, 800, 20000);
+    }
+
+    /**
+     * One logic step with the given scenario
+     */
+    private static void benchProcessLogic(String filter, int enemies, int bullets, boolean boss)
+    {
+        String name = String.format("processLogic enemies=%d bullets=%d%s", enemies, bullets, boss ? " boss" : "");
+        if(!name.contains(filter)) return;
+        Renderer r = new Renderer(0, true);
+        // enemies die and bullets fly away, so the scenario is set up again regularly
+        int[] count = {0};
+        measure(name, () -> {
+            if(count[0]++ % 50 == 0)
+                setupScenario(r, enemies, bullets, boss);
+        }, () -> {
+            r.processLogic();
+            return r.getEnemyCount() + r.getBullets().size();
+        });
+    }
+
+    /**
+     * Scrolling the background by one line
+     */
+    private static void benchBackground(String filter)
+    {
+        String name = "Background.update";
+        if(!name.contains(filter)) return;
+        GameObject.Background background = new GameObject.Background(84, 39, 42);
+        // the new top row is drawn, so that the update is used
+        Renderer.CellBuffer topRow = new Renderer.CellBuffer(85, 1);
+        measure(name, null, () -> {
+            background.update();
+            background.drawLayer(topRow);
+            return topRow.chars[42];
+        });
+    }
+
+    /**
+     * The bullet pass alone: moving bullets out and testing hits against the enemies
+     */
+    private static void benchCollision(String filter, int enemies, int bullets, boolean boss)
+    {
+        String name = String.format("processBullets enemies=%d bullets=%d%s", enemies, bullets, boss ? " boss" : "");
+        if(!name.contains(filter)) return;
+        Renderer r = new Renderer(0, true);
+        measure(name, () -> setupScenario(r, enemies, bullets, boss), () -> {
+            r.processBullets();
+            return r.getScore() + r.getEnemyCount() + r.getBullets().size();
+        });
+    }
+
+    /**
+     * Spawning a new round of enemies next to the given number of enemies
+     */
+    private static void benchSpawn(String filter, int enemies)
+    {
+        String name = String.format("spawnEnemies existing=%d spawned=5", enemies);
+        if(!name.contains(filter)) return;
+        Renderer r = new Renderer(0, true);
+        r.setEnemiesSpawned(5, 5);
+        measure(name, () -> setupScenario(r, enemies, 0, false), () -> {
+            r.spawnEnemies();
+            return r.getEnemyCount();
+        });
+    }
+
+    /**
+     * Presenting and painting one frame into an off-screen image
+     */
+    private static void benchPaint(String filter, int enemies, int bullets, boolean boss)
+    {
+        String name = String.format("paintComponent enemies=%d bullets=%d%s", enemies, bullets, boss ? " boss" : "");
+        if(!name.contains(filter)) return;
+        Renderer r = new Renderer(0, true);
+        Renderer.MyPanel panel = r.new MyPanel();
+        r.attachDisplay(panel);
+        BufferedImage image = new BufferedImage(600, 600, BufferedImage.TYPE_INT_RGB);
+        Graphics g = image.getGraphics();
+        int[] count = {0};
+        measure(name, () -> {
+            if(count[0]++ % 50 == 0)
+                setupScenario(r, enemies, bullets, boss);
+            r.tick();
+            r.present();
+        }, () -> {
+            panel.paintComponent(g);
+            return image.getRGB(300, 300);
+        });
+    }
+
+    /**
+     * A whole tick of a swarm round in a large arena, the frame budget at 60 frames per second is 16.7 ms
+     */
+    private static void benchSwarm(String filter, int width, int height, int enemies)
+    {
+        String name = String.format("tick arena=%dx%d swarm=%d", width, height, enemies);
+        if(!name.contains(filter)) return;
+        Renderer r = new Renderer(0, Renderer.DisplayMode.HEADLESS, 42, width, height);
+        int[] count = {0};
+        measure(name, () -> {
+            if(count[0]++ % 50 == 0)
+                setupScenario(r, enemies, 0, false);
+        }, () -> r.tick() ? r.getEnemyCount() : 0);
+    }
+
+    /**
+     * Replace the enemies and bullets of a game with a random scenario
+     * @param r
+     * @param enemies number of enemies to place, as many as fit
+     * @param bullets number of bullets, both from enemies and from my ship
+     * @param boss place a boss instead of normal enemies
+     */
+    private static void setupScenario(Renderer r, int enemies, int bullets, boolean boss)
+    {
+        Random rand = new Random(42);
+        int maxX = r.getMaxPosX(), maxY = r.getMaxPosY();
+        r.clearEntities();
+        r.discardCommands(); // the operations draw, but nothing presents what they drew
+        // my ship must survive the scenario. Its HP is all that the difficulty level sets, so there is no level axis
+        r.getMyShip().d_HP = Integer.MAX_VALUE / 2;
+        if(boss)
+            r.placeEnemy(GameObject.EnemyType.D, maxX / 2, 5);
+        for(int i = 0; i < enemies * 10 && r.getEnemyCount() < enemies && !boss; i++)
+        {
+            int x = rand.nextInt(maxX - 8) + 4;
+            int y = rand.nextInt(maxY / 2 - 1) + 1;
+            int type = rand.nextInt(10);
+            r.placeEnemy((type < 6) ? GameObject.EnemyType.A : (type < 9) ? GameObject.EnemyType.B : GameObject.EnemyType.C, x, y);
+        }
+        for(int i = 0; i < bullets; i++)
+        {
+            boolean enemy = rand.nextBoolean();
+            r.getBullets().add(rand.nextInt(maxX + 1), rand.nextInt(maxY + 1),
+                enemy ? GameObject.MoveDirection.DIR_DOWN : GameObject.MoveDirection.DIR_UP, enemy);
+        }
+    }
+
+    /**
+     * Warm up and measure an operation, then print the result
+     * @param name
+     * @param prepare run untimed before every operation, may be null
+     * @param op the measured operation
+     */
+    private static void measure(String name, Prepare prepare, Op op)
+    {
+        double[] results = new double[measureRounds];
+        for(int round = 0; round < warmupRounds + measureRounds; round++)
+        {
+            long measured = 0;
+            long ops = 0;
+            long result = 0;
+            long roundStart = System.nanoTime();
+            while(System.nanoTime() - roundStart < roundNanos)
+            {
+                if(prepare != null)
+                {
+                    // time every operation on its own, leaving the preparation out
+                    prepare.run();
+                    long t0 = System.nanoTime();
+                    result += op.run();
+                    measured += System.nanoTime() - t0;
+                    ops++;
+                }
+                else
+                {
+                    long t0 = System.nanoTime();
+                    for(int i = 0; i < 100; i++)
+                        result += op.run();
+                    measured += System.nanoTime() - t0;
+                    ops += 100;
+                }
+            }
+            sink += result;
+            if(round >= warmupRounds)
+                results[round - warmupRounds] = (double)measured / ops;
+        }
+        // the median, a round disturbed by e.g. a collection moves it less than the mean
+        double median = median(results);
+        double[] deviations = new double[measureRounds];
+        for(int i = 0; i < measureRounds; i++)
+            deviations[i] = Math.abs(results[i] - median);
+        double deviation = median(deviations);
+        System.out.printf("%-52s %14.1f %14.1f%n", name, median, deviation);
+    }
+
+    private static double median(double[] values)
+    {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return (n % 2 == 1) ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+}
@@ -0,0 +1,253 @@
+// This file measures where the time of a frame goes
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Times the phases of the game loop.
+ * Every phase is recorded into a latency histogram, and emitted as a JFR event while a flight recording is running,
+ * e.g. java -XX:StartFlightRecording=filename=game.jfr Game, then jfr print --events jspaceinvader.Phase game.jfr
+ * <p>
+ * Each phase is timed by a single thread, the paint phase on the event dispatch thread (or the game thread with active rendering)
+ * and all others on the game thread
+ */
+public class FrameProfiler
+{
+    /**
+     * The measured phases
+     */
+    public static enum Phase
+    {
+        FRAME("frame"), // all the work of one loop iteration, without waiting
+        INPUT("input"), // sampling the control state of a tick
+        LOGIC("logic"), // game logic of a tick, processLogic and the moves
+        RENDER("render"), // redrawing the objects into render commands
+        UI("ui"), // the score lines
+        PRESENT("present"), // copying the cells into a frame snapshot
+        PAINT("paint"); // painting the snapshot, on the event dispatch thread or by the game thread with active rendering
+
+        private final String label;
+        Phase(String label){this.label = label;}
+        public String getLabel(){return label;}
+    }
+
+    /**
+     * The JFR event of one phase
+     */
+    @Name("jspaceinvader.Phase")
+    @Label("Game Loop Phase")
+    @Category("JSpaceInvader")
+    @Description("Duration of one phase of the game loop")
+    @StackTrace(false)
+    static class PhaseEvent extends Event
+    {
+        @Label("Phase")
+        String phase;
+    }
+
+    private static final EventType eventType = EventType.getEventType(PhaseEvent.class);
+    private static final long overlayPeriod = 1000000000L; // the overlay is refreshed once per second
+
+    private boolean enabled = true;
+    private final Phase[] phases = Phase.values();
+    private final Histogram[] histograms = new Histogram[phases.length];
+    private final PhaseEvent[] events = new PhaseEvent[phases.length];
+    // state of the overlay, only used by the game thread
+    private final long[][] overlayBase = new long[phases.length][];
+    private String[] overlay = new String[0];
+    private long overlayTime = 0;
+
+    public FrameProfiler()
+    {
+        for(int i = 0; i < phases.length; i++)
+        {
+            histograms[i] = new Histogram();
+            overlayBase[i] = new long[Histogram.bucketCount];
+        }
+    }
+
+    /**
+     * A disabled profiler costs one branch per phase
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled){this.enabled = enabled;}
+
+    /**
+     * Start timing a phase. A phase that is begun but never ended is not recorded
+     * @param phase
+     * @return start time, to be passed to end
+     */
+    public long begin(Phase phase)
+    {
+        if(!enabled) return 0;
+        if(eventType.isEnabled())
+        {
+            PhaseEvent event = new PhaseEvent();
+            event.phase = phase.getLabel();
+            event.begin();
+            events[phase.ordinal()] = event;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Finish timing a phase
+     * @param phase
+     * @param start the value returned by begin
+     */
+    public void end(Phase phase, long start)
+    {
+        if(!enabled) return;
+        histograms[phase.ordinal()].record(System.nanoTime() - start);
+        PhaseEvent event = events[phase.ordinal()];
+        if(event != null)
+        {
+            events[phase.ordinal()] = null;
+            event.commit();
+        }
+    }
+
+    /**
+     * Lines of the on-screen overlay, percentiles of the last second
+     * @param enemies number of enemies
+     * @param bullets number of bullets
+     * @return lines, refreshed once per second
+     */
+    public String[] overlay(int enemies, int bullets)
+    {
+        long tNow = System.nanoTime();
+        if(tNow - overlayTime < overlayPeriod && overlay.length > 0)
+            return overlay;
+        overlayTime = tNow;
+        String[] lines = new String[phases.length + 1];
+        for(int i = 0; i < phases.length; i++)
+        {
+            Histogram h = histograms[i];
+            lines[i] = String.format("%-7s p50 %6.2f p99 %6.2f ms", phases[i].getLabel(),
+                h.percentileSince(overlayBase[i], 0.5) / 1e6, h.percentileSince(overlayBase[i], 0.99) / 1e6);
+            h.copyTo(overlayBase[i]);
+        }
+        lines[phases.length] = String.format("enemies %4d  bullets %5d", enemies, bullets);
+        overlay = lines;
+        return overlay;
+    }
+
+    /**
+     * Percentiles of every phase since the start
+     * @return String, one line per phase
+     */
+    public String summary()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append(String.format("%-8s %10s %10s %10s %10s %10s", "phase", "count", "p50 us", "p90 us", "p99 us", "max us"));
+        for(int i = 0; i < phases.length; i++)
+        {
+            Histogram h = histograms[i];
+            if(h.getCount() == 0) continue;
+            builder.append(String.format("%n%-8s %10d %10.1f %10.1f %10.1f %10.1f", phases[i].getLabel(), h.getCount(),
+                h.percentile(0.5) / 1e3, h.percentile(0.9) / 1e3, h.percentile(0.99) / 1e3, h.getMax() / 1e3));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A latency histogram with logarithmic buckets, 8 buckets per power of two (at most 12.5% error).
+     * Recording is a few instructions and never allocates. It is written by one thread,
+     * other threads may read it at any time and see a slightly old state
+     */
+    public static class Histogram
+    {
+        private static final int subBits = 3;
+        private static final int subCount = 1 << subBits;
+        static final int bucketCount = (64 - subBits + 1) << subBits;
+        private final long[] counts = new long[bucketCount];
+        private long count = 0;
+        private long max = 0;
+
+        /**
+         * @param nanos
+         */
+        public void record(long nanos)
+        {
+            if(nanos < 0) nanos = 0;
+            counts[bucket(nanos)]++;
+            count++;
+            if(nanos > max) max = nanos;
+        }
+
+        public long getCount(){return count;}
+        public long getMax(){return max;}
+
+        /**
+         * @param p in [0, 1]
+         * @return the value at the percentile, in nanoseconds
+         */
+        public long percentile(double p){return percentileSince(null, p);}
+
+        /**
+         * Percentile of the values recorded since a copy of the counts was taken
+         * @param base counts taken by copyTo, or null for all values
+         * @param p in [0, 1]
+         * @return the value at the percentile, in nanoseconds
+         */
+        public long percentileSince(long[] base, double p)
+        {
+            long total = 0;
+            for(int i = 0; i < bucketCount; i++)
+                total += counts[i] - ((base != null) ? base[i] : 0);
+            if(total <= 0) return 0;
+            long rank = (long)Math.ceil(p * total);
+            long seen = 0;
+            for(int i = 0; i < bucketCount; i++)
+            {
+                seen += counts[i] - ((base != null) ? base[i] : 0);
+                if(seen >= rank && seen > 0)
+                    return value(i);
+            }
+            return value(bucketCount - 1);
+        }
+
+        /**
+         * Add the values of another histogram, e.g. to combine the histograms of several threads
+         * @param other
+         */
+        public void add(Histogram other)
+        {
+            for(int i = 0; i < bucketCount; i++)
+                counts[i] += other.counts[i];
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * Copy the counts, for percentileSince
+         * @param base
+         */
+        public void copyTo(long[] base){System.arraycopy(counts, 0, base, 0, bucketCount);}
+
+        private static int bucket(long value)
+        {
+            if(value < subCount) return (int)value;
+            int exp = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exp - subBits)) & (subCount - 1);
+            return ((exp - subBits + 1) << subBits) | sub;
+        }
+
+        /**
+         * The middle of a bucket
+         */
+        private static long value(int bucket)
+        {
+            if(bucket < subCount) return bucket;
+            int exp = (bucket >> subBits) + subBits - 1;
+            long width = 1L << (exp - subBits);
+            long lower = (1L << exp) | ((long)(bucket & (subCount - 1)) << (exp - subBits));
+            return lower + width / 2;
+        }
+    }
+}
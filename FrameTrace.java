@@ -0,0 +1,533 @@
+// This file records the frames of a game into a trace file, and plays them back
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A compact binary trace of the frames of a game, for reviewing a game later.
+ * <p>
+ * File layout: header (magic, version, width, height), then one record per frame, then an index of all frames.
+ * A record is its type (keyframe or diff), the tick it shows, and the run-length encoded cells.
+ * A keyframe holds every cell, a diff only the cells that changed since the previous frame of the trace.
+ * The index at the end holds the offset of every frame and of the keyframe it starts from,
+ * so seeking to any frame decodes at most one keyframe interval
+ */
+public class FrameTrace
+{
+    private static final int magic = 0x4A534954; // "JSIT"
+    private static final int version = 1;
+    private static final int headerSize = 16;
+    private static final int trailerSize = 16; // frame count, index offset, magic
+    private static final byte typeKeyframe = 0;
+    private static final byte typeDiff = 1;
+
+    /**
+     * Encodes frames as run-length encoded cell diffs. A frame is a sequence of
+     * (unchanged cells to skip, number of runs, runs of (length, character, color)), until all cells are covered
+     */
+    public static class Encoder
+    {
+        private final Renderer.CellBuffer previous;
+        private boolean first = true;
+
+        /**
+         * @param width
+         * @param height
+         */
+        public Encoder(int width, int height){previous = new Renderer.CellBuffer(width, height);}
+
+        /**
+         * Encode a frame into a buffer
+         * @param frame
+         * @param keyframe encode every cell, independent of the previous frame
+         * @param out large enough for a keyframe, see maxFrameSize
+         */
+        public void encode(Renderer.CellBuffer frame, boolean keyframe, ByteBuffer out)
+        {
+            keyframe |= first;
+            first = false;
+            char[] chars = frame.chars;
+            byte[] colors = frame.colors;
+            int cells = chars.length;
+            int i = 0;
+            while(i < cells)
+            {
+                // skip the unchanged cells
+                int start = i;
+                while(!keyframe && i < cells && chars[i] == previous.chars[i] && colors[i] == previous.colors[i])
+                    i++;
+                putVarint(out, i - start);
+                if(i == cells)
+                {
+                    out.put((byte)0); // no runs, the rest is unchanged
+                    break;
+                }
+                // the runs of equal cells up to the next unchanged cell
+                int runsAt = out.position();
+                out.put((byte)0); // number of runs, patched below
+                int runs = 0;
+                while(i < cells && runs < 127 && (keyframe || chars[i] != previous.chars[i] || colors[i] != previous.colors[i]))
+                {
+                    char ch = chars[i];
+                    byte color = colors[i];
+                    int length = 1;
+                    while(i + length < cells && chars[i + length] == ch && colors[i + length] == color
+                        && (keyframe || ch != previous.chars[i + length] || color != previous.colors[i + length]))
+                        length++;
+                    putVarint(out, length);
+                    out.put((ch >= ' ' && ch <= '~') ? (byte)ch : (byte)'?');
+                    out.put(color);
+                    i += length;
+                    runs++;
+                }
+                out.put(runsAt, (byte)runs);
+            }
+            frame.copyTo(previous);
+        }
+
+        /**
+         * Largest size of an encoded frame
+         * @param width
+         * @param height
+         * @return bytes
+         */
+        public static int maxFrameSize(int width, int height){return width * height * 8 + 16;}
+    }
+
+    /**
+     * Decodes frames written by the Encoder
+     */
+    public static class Decoder
+    {
+        /**
+         * Apply an encoded frame to a cell buffer holding the previous frame
+         * @param in positioned at the start of the encoded frame
+         * @param frame
+         */
+        public static void decode(ByteBuffer in, Renderer.CellBuffer frame)
+        {
+            int cells = frame.chars.length;
+            int i = 0;
+            while(i < cells)
+            {
+                i += getVarint(in);
+                int runs = in.get();
+                for(int run = 0; run < runs; run++)
+                {
+                    int length = getVarint(in);
+                    char ch = (char)(in.get() & 0xFF);
+                    byte color = in.get();
+                    Arrays.fill(frame.chars, i, i + length, ch);
+                    Arrays.fill(frame.colors, i, i + length, color);
+                    i += length;
+                }
+            }
+        }
+    }
+
+    /**
+     * Records frames into a trace file. Frames are copied by the game thread and encoded and written
+     * by a background thread; when the writer falls behind, frames are dropped instead of waiting
+     */
+    public static class Recorder
+    {
+        private static final int queueSize = 8;
+
+        /**
+         * A captured frame on its way to the writer
+         */
+        private static class Captured
+        {
+            final Renderer.CellBuffer cells;
+            long tick;
+            Captured(int width, int height){cells = new Renderer.CellBuffer(width, height);}
+        }
+
+        private final int keyframeInterval;
+        private final FileChannel channel;
+        private final BlockingQueue<Captured> free = new ArrayBlockingQueue<>(queueSize);
+        private final BlockingQueue<Captured> pending = new ArrayBlockingQueue<>(queueSize + 1);
+        private final Captured endOfTrace = new Captured(1, 1);
+        private final Thread writer;
+        private volatile boolean failed = false;
+        private boolean lossless = false;
+        // written by the game thread
+        private long dropped = 0;
+        private long captured = 0;
+        // only used by the writer thread
+        private final Encoder encoder;
+        private ByteBuffer buffer;
+        private long[] index = new long[1024]; // offset of every frame
+        private int[] keyframes = new int[1024]; // keyframe of every frame
+        private int frames = 0;
+        private int lastKeyframe = 0;
+        private long position = 0; // bytes written so far
+
+        /**
+         * Create the trace file and start the writer thread
+         * @param path
+         * @param width
+         * @param height
+         * @param keyframeInterval a keyframe is written at least every this many frames
+         * @throws IOException
+         */
+        public Recorder(String path, int width, int height, int keyframeInterval) throws IOException
+        {
+            this(FileChannel.open(Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING), width, height, keyframeInterval);
+        }
+
+        /**
+         * @param channel the trace is written into, closed when the trace is finished
+         * @param width
+         * @param height
+         * @param keyframeInterval a keyframe is written at least every this many frames
+         * @throws IOException
+         */
+        Recorder(FileChannel channel, int width, int height, int keyframeInterval) throws IOException
+        {
+            this.keyframeInterval = keyframeInterval;
+            this.channel = channel;
+            encoder = new Encoder(width, height);
+            buffer = ByteBuffer.allocateDirect(Encoder.maxFrameSize(width, height) + 9);
+            buffer.putInt(magic).putInt(version).putInt(width).putInt(height).flip();
+            writeBuffer();
+            for(int i = 0; i < queueSize; i++)
+                free.add(new Captured(width, height));
+            writer = new Thread(this::write, "frame trace writer");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Wait for the writer instead of dropping frames, for loops that do not run in real time
+         * @param lossless
+         */
+        public void setLossless(boolean lossless){this.lossless = lossless;}
+
+        /**
+         * Capture a frame, never blocks unless lossless. Called by the game thread
+         * @param cells the content drawn by the commands
+         * @param background drawn behind the commands, may be null
+         * @param tick the tick the frame shows
+         */
+        public void capture(Renderer.CellBuffer cells, GameObject.Background background, long tick)
+        {
+            if(failed)
+            {
+                dropped++; // nothing is written any more
+                return;
+            }
+            Captured frame = free.poll();
+            if(frame == null && lossless)
+            {
+                try
+                {
+                    frame = free.take();
+                }catch(InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if(frame == null)
+            {
+                dropped++; // the writer is behind, the next diff simply spans more changes
+                return;
+            }
+            cells.copyTo(frame.cells);
+            if(background != null)
+                background.drawLayer(frame.cells);
+            frame.tick = tick;
+            captured++;
+            pending.add(frame);
+        }
+
+        /**
+         * Write the captured frames until the end of the trace. After a failed write the frames are still taken
+         * and given back, so that the game thread never waits for a writer that stopped
+         */
+        private void write()
+        {
+            try
+            {
+                while(true)
+                {
+                    Captured frame = pending.take();
+                    if(frame == endOfTrace) break;
+                    try
+                    {
+                        if(!failed)
+                            writeFrame(frame.cells, frame.tick);
+                    }catch(IOException e)
+                    {
+                        fail(e);
+                    }
+                    free.add(frame);
+                }
+                if(!failed)
+                    writeIndex();
+            }catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }catch(IOException e)
+            {
+                fail(e);
+            }finally
+            {
+                try
+                {
+                    channel.close();
+                }catch(IOException e)
+                {
+                    // closing anyway
+                }
+            }
+        }
+
+        private void fail(IOException e)
+        {
+            System.out.println("Failed to write the frame trace, tracing stopped: " + e.getMessage());
+            failed = true;
+        }
+
+        private void writeFrame(Renderer.CellBuffer frame, long tick) throws IOException
+        {
+            boolean keyframe = (frames - lastKeyframe >= keyframeInterval) || frames == 0;
+            if(keyframe)
+                lastKeyframe = frames;
+            if(frames == index.length)
+            {
+                index = Arrays.copyOf(index, frames * 2);
+                keyframes = Arrays.copyOf(keyframes, frames * 2);
+            }
+            index[frames] = position;
+            keyframes[frames] = lastKeyframe;
+            frames++;
+            buffer.clear();
+            buffer.put(keyframe ? typeKeyframe : typeDiff);
+            buffer.putLong(tick);
+            encoder.encode(frame, keyframe, buffer);
+            buffer.flip();
+            writeBuffer();
+        }
+
+        private void writeIndex() throws IOException
+        {
+            long indexOffset = position;
+            ByteBuffer out = ByteBuffer.allocate(frames * 12 + trailerSize);
+            for(int i = 0; i < frames; i++)
+                out.putLong(index[i]).putInt(keyframes[i]);
+            out.putInt(frames).putLong(indexOffset).putInt(magic).flip();
+            buffer = out;
+            writeBuffer();
+        }
+
+        private void writeBuffer() throws IOException
+        {
+            while(buffer.hasRemaining())
+                position += channel.write(buffer);
+        }
+
+        /**
+         * Write the remaining frames and the index, and close the file
+         * @return String, statistics of the trace
+         */
+        public String finish()
+        {
+            pending.add(endOfTrace);
+            try
+            {
+                writer.join();
+            }catch(InterruptedException e)
+            {
+                System.out.println("Thread join interrupted");
+                Thread.currentThread().interrupt();
+            }
+            return String.format("Traced %d frames (%d dropped) into %d bytes", captured, dropped, position);
+        }
+    }
+
+    /**
+     * Plays back a trace file, mapped into memory. A file larger than a mapping can hold is mapped in windows,
+     * each overlapping the next by the largest record, so that every record can be read from one window
+     */
+    public static class Player
+    {
+        private static final long defaultWindowSize = 1L << 30; // bytes per mapped window
+
+        private final long windowSize;
+        private final MappedByteBuffer[] windows;
+        private final int width, height, frameCount;
+        private final long indexOffset;
+        private final Renderer.CellBuffer frame;
+        private int current = -1; // the frame held by the cell buffer
+
+        /**
+         * Map a trace file and read its index
+         * @param path
+         * @throws IOException if the file cannot be read or is not a complete trace
+         */
+        public Player(String path) throws IOException
+        {
+            this(path, defaultWindowSize);
+        }
+
+        /**
+         * @param path
+         * @param windowSize bytes per mapped window, smaller windows are for tests
+         * @throws IOException if the file cannot be read or is not a complete trace
+         */
+        Player(String path, long windowSize) throws IOException
+        {
+            this.windowSize = windowSize;
+            try(FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ))
+            {
+                long length = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(headerSize);
+                channel.read(header, 0);
+                if(length < headerSize + trailerSize || header.getInt(0) != magic || header.getInt(4) != version)
+                    throw new IOException(path + " is not a complete JSpaceInvader frame trace");
+                width = header.getInt(8);
+                height = header.getInt(12);
+                // a window reaches into the next one by the largest record, or an index entry
+                long overlap = Math.max(Encoder.maxFrameSize(width, height) + 9, trailerSize);
+                windows = new MappedByteBuffer[(int)((length + windowSize - 1) / windowSize)];
+                for(int w = 0; w < windows.length; w++)
+                {
+                    long start = w * windowSize;
+                    long size = Math.min(windowSize + overlap, length - start);
+                    windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, start, size);
+                }
+                if(getInt(length - 4) != magic)
+                    throw new IOException(path + " is not a complete JSpaceInvader frame trace");
+                frameCount = getInt(length - trailerSize);
+                indexOffset = getLong(length - trailerSize + 4);
+            }
+            frame = new Renderer.CellBuffer(width, height);
+        }
+
+        public int getWidth(){return width;}
+        public int getHeight(){return height;}
+        public int getFrameCount(){return frameCount;}
+
+        /**
+         * The tick shown by a frame
+         * @param n frame number
+         * @return tick
+         */
+        public long getTick(int n){return getLong(offset(n) + 1);}
+
+        /**
+         * Decode a frame. The next frame is decoded from the current one,
+         * any other frame from its keyframe, so a seek is bounded by the keyframe interval
+         * @param n frame number
+         * @return the cells of the frame, valid until the next seek
+         */
+        public Renderer.CellBuffer seek(int n)
+        {
+            if(n < 0 || n >= frameCount)
+                throw new IndexOutOfBoundsException("frame " + n + " of " + frameCount);
+            int keyframe = getInt(indexOffset + n * 12L + 8);
+            int from = (current >= keyframe && current < n) ? current + 1 : keyframe;
+            if(from == keyframe)
+                frame.clear();
+            for(int i = from; i <= n; i++)
+                Decoder.decode(at(offset(i) + 9), frame);
+            current = n;
+            return frame;
+        }
+
+        private long offset(int n){return getLong(indexOffset + n * 12L);}
+
+        /**
+         * A view of the file from the given offset, to the end of its window
+         */
+        private ByteBuffer at(long offset)
+        {
+            ByteBuffer in = windows[(int)(offset / windowSize)].duplicate();
+            in.position((int)(offset % windowSize));
+            return in;
+        }
+
+        private int getInt(long offset){return windows[(int)(offset / windowSize)].getInt((int)(offset % windowSize));}
+        private long getLong(long offset){return windows[(int)(offset / windowSize)].getLong((int)(offset % windowSize));}
+    }
+
+    /**
+     * Play a trace in the terminal, or print its statistics
+     * Usage: java FrameTrace file [--from frame] [--fps n] [--info]
+     * @param args
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        if(args.length < 1)
+        {
+            System.out.println("Usage: java FrameTrace file [--from frame] [--fps n] [--info]");
+            return;
+        }
+        System.setProperty("java.awt.headless", "true");
+        Player player = new Player(args[0]);
+        int from = 0, fps = 30;
+        boolean info = false;
+        for(int i = 1; i < args.length; i++)
+        {
+            if(args[i].equals("--info")) info = true;
+            else if(args[i].equals("--from") && i + 1 < args.length) from = Integer.parseInt(args[++i]);
+            else if(args[i].equals("--fps") && i + 1 < args.length) fps = Integer.parseInt(args[++i]);
+        }
+        if(info || player.getFrameCount() == 0)
+        {
+            System.out.printf("%d frames of %dx%d cells", player.getFrameCount(), player.getWidth(), player.getHeight());
+            if(player.getFrameCount() > 0)
+                System.out.printf(", ticks %d to %d", player.getTick(0), player.getTick(player.getFrameCount() - 1));
+            System.out.println();
+            return;
+        }
+        FrameProfiler profiler = new FrameProfiler();
+        profiler.setEnabled(false);
+        TerminalDisplay display = new TerminalDisplay(player.getWidth(), player.getHeight(), profiler);
+        long frameNanos = 1000000000L / fps;
+        long next = System.nanoTime();
+        for(int n = Math.max(0, from); n < player.getFrameCount(); n++)
+        {
+            player.seek(n).copyTo(display.getCells());
+            display.present(null);
+            next += frameNanos;
+            long remaining = next - System.nanoTime();
+            if(remaining > 0)
+                Thread.sleep(remaining / 1000000L, (int)(remaining % 1000000L));
+        }
+        display.dispose();
+    }
+
+    private static void putVarint(ByteBuffer out, int value)
+    {
+        while(value >= 0x80)
+        {
+            out.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte)value);
+    }
+
+    private static int getVarint(ByteBuffer in)
+    {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do
+        {
+            b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -1,5 +1,6 @@
 // This file is the starting point of the game
 
+import java.io.IOException;
 import java.util.Scanner;
 
 /**
@@ -7,10 +8,179 @@ import java.util.Scanner;
  */
 public class Game 
 {
+    private static final int traceKeyframeInterval = 60; // frames between two keyframes of a frame trace
+    private static final String ratesUsage = "Usage: java Game --tps n --fps n, both at least 1";
+
     public static void main(String[] args)
     {
-        System.out.println("Welcome to JSpaceInvader!");
-        System.out.println("Please enter a level of difficulty: 0 (easy), 1 (middle), 2 (hard), 3 (extremely hard)");
+        boolean headless = hasFlag(args, "--headless");
+        if(headless || hasFlag(args, "--terminal"))
+            System.setProperty("java.awt.headless", "true");
+        String replayPath = stringOption(args, "--replay", null);
+        if(replayPath != null)
+        {
+            runReplay(args, replayPath, headless);
+            return;
+        }
+        int level;
+        if(headless)
+            level = intOption(args, "--level", 0);
+        else
+        {
+            System.out.println("Welcome to JSpaceInvader!");
+            System.out.println("Please enter a level of difficulty: 0 (easy), 1 (middle), 2 (hard), 3 (extremely hard)");
+            level = readLevel();
+        }
+        long seed = longOption(args, "--seed", System.currentTimeMillis());
+        int[] arena = arenaOption(args);
+        if(arena == null)
+        {
+            System.out.println("Usage: java Game --arena WIDTHxHEIGHT, at least " + Renderer.minArenaWidth + "x" +
+                Renderer.minArenaHeight + ", e.g. 400x120");
+            return;
+        }
+        int tickRate = intOption(args, "--tps", 30);
+        int frameRate = intOption(args, "--fps", 60);
+        if(tickRate < 1 || frameRate < 1)
+        {
+            System.out.println(ratesUsage);
+            return;
+        }
+        Renderer myRenderer = new Renderer(level, displayMode(args, headless), seed, arena[0], arena[1]);
+        myRenderer.setSwarmSize(intOption(args, "--swarm", 0));
+        myRenderer.setRates(tickRate, frameRate);
+        myRenderer.setTimeScale(doubleOption(args, "--speed", 1.0));
+        String recordPath = stringOption(args, "--record", null);
+        if(recordPath != null)
+        {
+            try
+            {
+                myRenderer.setRecorder(new Replay.Recorder(recordPath, seed, level, myRenderer.getTickRate(),
+                    myRenderer.getMaxPosX(), myRenderer.getMaxPosY(), myRenderer.getSwarmSize()));
+            }catch(IOException e)
+            {
+                System.out.println("Cannot record to " + recordPath + ": " + e.getMessage());
+            }
+        }
+        play(myRenderer, args, headless);
+        if(recordPath != null)
+            System.out.println("Recorded seed " + seed + " to " + recordPath);
+    }
+
+    /**
+     * Play back a recorded game, with or without a window
+     * Usage: java Game --replay file [--headless]
+     * @param args
+     * @param path
+     * @param headless
+     */
+    private static void runReplay(String[] args, String path, boolean headless)
+    {
+        Replay.Player player;
+        try
+        {
+            player = new Replay.Player(path);
+        }catch(IOException e)
+        {
+            System.out.println("Cannot replay " + path + ": " + e.getMessage());
+            return;
+        }
+        int frameRate = intOption(args, "--fps", 60);
+        if(frameRate < 1)
+        {
+            System.out.println(ratesUsage);
+            return;
+        }
+        // the arena of the recording, whatever the size of this screen
+        Renderer myRenderer = new Renderer(player.getLevel(), displayMode(args, headless), player.getSeed(),
+            player.getMaxPosX() + 1, player.getMaxPosY() + 1);
+        myRenderer.setRates(player.getTickRate(), frameRate);
+        myRenderer.setTimeScale(doubleOption(args, "--speed", 1.0));
+        myRenderer.setSwarmSize(player.getSwarmSize());
+        myRenderer.setControlSource(player);
+        play(myRenderer, args, headless);
+        if(player.matches(myRenderer.getTicks(), myRenderer.checksum()))
+            System.out.println("Replay matches the recording");
+        else
+            System.out.println("Replay does NOT match the recording");
+    }
+
+    /**
+     * Run the game until it ends, and print the summary
+     * Without a window the simulation runs as fast as possible, for at most --ticks n ticks.
+     * With --profile the time of every phase of the game loop is reported at the end,
+     * with --trace file every frame is recorded, and with --spectate port it is streamed to spectators
+     * @param myRenderer
+     * @param args
+     * @param headless
+     */
+    private static void play(Renderer myRenderer, String[] args, boolean headless)
+    {
+        String tracePath = stringOption(args, "--trace", null);
+        if(tracePath != null)
+        {
+            try
+            {
+                myRenderer.setFrameTrace(new FrameTrace.Recorder(tracePath, myRenderer.getViewWidth(),
+                    myRenderer.getViewHeight(), traceKeyframeInterval));
+            }catch(IOException e)
+            {
+                System.out.println("Cannot trace to " + tracePath + ": " + e.getMessage());
+            }
+        }
+        int spectatePort = intOption(args, "--spectate", -1);
+        if(spectatePort >= 0)
+        {
+            try
+            {
+                SpectatorServer server = new SpectatorServer(spectatePort, myRenderer.getViewWidth(), myRenderer.getViewHeight());
+                myRenderer.setSpectatorServer(server);
+                System.out.println("Spectators can watch with: java SpectatorServer <host> " + server.getPort());
+            }catch(IOException e)
+            {
+                System.out.println("Cannot open port " + spectatePort + " for spectators: " + e.getMessage());
+            }
+        }
+        boolean profile = hasFlag(args, "--profile");
+        if(profile)
+            myRenderer.getProfiler().setEnabled(true);
+        if(headless)
+        {
+            myRenderer.loopHeadless(intOption(args, "--ticks", 0));
+            System.out.println(myRenderer.close());
+        }
+        else
+        {
+            myRenderer.loop();
+            String summary = myRenderer.close();
+            System.out.println("\nThanks for playing JSpaceInvader!");
+            System.out.println(summary);
+        }
+        if(profile)
+            System.out.println(myRenderer.getProfiler().summary());
+        if(!headless)
+            System.out.println();
+    }
+
+    /**
+     * Frames are painted by Swing, actively by the game loop with --active, or as text with --terminal
+     * @param args
+     * @param headless
+     * @return Renderer.DisplayMode
+     */
+    private static Renderer.DisplayMode displayMode(String[] args, boolean headless)
+    {
+        if(headless) return Renderer.DisplayMode.HEADLESS;
+        if(hasFlag(args, "--terminal")) return Renderer.DisplayMode.TERMINAL;
+        return hasFlag(args, "--active") ? Renderer.DisplayMode.ACTIVE : Renderer.DisplayMode.PANEL;
+    }
+
+    /**
+     * Ask for the level of difficulty until a valid one is entered
+     * @return level
+     */
+    private static int readLevel()
+    {
         Scanner scanner = new Scanner(System.in);
         int level = -1;
         do
@@ -22,11 +192,96 @@ public class Game
                 level = input;
         }while(level < 0);
         scanner.close();
-        Renderer myRenderer = new Renderer(level);
-        myRenderer.loop();
-        String summary = myRenderer.close();
-        System.out.println("\nThanks for playing JSpaceInvader!");
-        System.out.println(summary);
-        System.out.println();
+        return level;
+    }
+
+    /**
+     * Whether a flag is present in the arguments
+     * @param args
+     * @param name
+     * @return boolean
+     */
+    private static boolean hasFlag(String[] args, String name)
+    {
+        for(String arg : args)
+            if(arg.equals(name)) return true;
+        return false;
+    }
+
+    /**
+     * Read the size of the arena given as "--arena WIDTHxHEIGHT"
+     * @param args
+     * @return width and height, 0 for the size of the screen, or null if the size is malformed or too small
+     */
+    private static int[] arenaOption(String[] args)
+    {
+        String value = stringOption(args, "--arena", null);
+        if(value == null) return new int[]{0, 0};
+        String[] size = value.toLowerCase().split("x");
+        if(size.length != 2) return null;
+        try
+        {
+            int width = Integer.parseInt(size[0]);
+            int height = Integer.parseInt(size[1]);
+            if(width < Renderer.minArenaWidth || height < Renderer.minArenaHeight) return null;
+            return new int[]{width, height};
+        }catch(NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    /**
+     * Read an integer option given as "name value"
+     * @param args
+     * @param name
+     * @param defaultValue
+     * @return the value, or defaultValue if not present
+     */
+    private static int intOption(String[] args, String name, int defaultValue)
+    {
+        for(int i = 0; i < args.length - 1; i++)
+            if(args[i].equals(name)) return Integer.parseInt(args[i+1]);
+        return defaultValue;
+    }
+
+    /**
+     * Read a long option given as "name value"
+     * @param args
+     * @param name
+     * @param defaultValue
+     * @return the value, or defaultValue if not present
+     */
+    private static long longOption(String[] args, String name, long defaultValue)
+    {
+        String value = stringOption(args, name, null);
+        return (value != null) ? Long.parseLong(value) : defaultValue;
+    }
+
+    /**
+     * Read a floating point option given as "name value"
+     * @param args
+     * @param name
+     * @param defaultValue
+     * @return the value, or defaultValue if not present
+     */
+    private static double doubleOption(String[] args, String name, double defaultValue)
+    {
+        String value = stringOption(args, name, null);
+        return (value != null) ? Double.parseDouble(value) : defaultValue;
+    }
+
+    /**
+     * Read a string option given as "name value"
+     * @param args
+     * @param name
+     * @param defaultValue
+     * @return the value, or defaultValue if not present
+     */
+    private static String stringOption(String[] args, String name, String defaultValue)
+    {
+        for(int i = 0; i < args.length - 1; i++)
+            if(args[i].equals(name)) return args[i+1];
+        return defaultValue;
     }
 }
@@ -1,8 +1,8 @@
 // This class contains all the definitions for the game objects
 
 import java.util.Random;
-import java.util.LinkedList;
-import java.util.ArrayList;
+import java.util.SplittableRandom;
+import java.util.Arrays;
 import java.awt.Color;
 
 /**
@@ -15,13 +15,19 @@ public class GameObject
      */
     public static enum MoveDirection
     {
-        DIR_UP(0),
-        DIR_DOWN(1),
-        DIR_LEFT(2),
-        DIR_RIGHT(3),
-        DIR_NONE(4);
+        DIR_UP(0, 0, -1),
+        DIR_DOWN(1, 0, 1),
+        DIR_LEFT(2, -1, 0),
+        DIR_RIGHT(3, 1, 0),
+        DIR_NONE(4, 0, 0);
         public final int num;
-        private MoveDirection(int num){this.num = num;}
+        public final int dx, dy; // the move by one cell
+        private MoveDirection(int num, int dx, int dy)
+        {
+            this.num = num;
+            this.dx = dx;
+            this.dy = dy;
+        }
     }
 
     /**
@@ -35,13 +41,13 @@ public class GameObject
         private int xMax, yMax;
         private Random rand;
 
-        public RecoveryPack(int xMax, int yMax)
+        public RecoveryPack(int xMax, int yMax, long seed)
         {
             xPos = 0;
             yPos = 0;
             this.xMax = xMax;
             this.yMax = yMax;
-            rand = new Random(System.currentTimeMillis());
+            rand = new Random(seed);
         }
         /**
          * Whether this pack is on screen
@@ -50,120 +56,237 @@ public class GameObject
         public boolean exist(){return existing;}
         /**
          * Randomly appear on screen
-         * @return a render command
+         * @param out receives the render command
          */
-        public Renderer.RenderCommand appear()
+        public void appear(Renderer.CommandBuffer out)
         {
             xPos = (double)rand.nextInt(xMax - 5);
             yPos = 0;
             existing = true;
-            return new Renderer.RenderCommand((int)Math.floor(xPos), (int)Math.floor(yPos), design, Color.GREEN);
+            out.add((int)Math.floor(xPos), (int)Math.floor(yPos), design, Color.GREEN);
         }
         /**
          * Disappear from screen
-         * @return a render command
+         * @param out receives the render command
          */
-        public Renderer.RenderCommand disappear()
+        public void disappear(Renderer.CommandBuffer out)
         {
             existing = false;
-            return new Renderer.RenderCommand((int)Math.floor(xPos), (int)Math.floor(yPos), "     ");
+            out.add((int)Math.floor(xPos), (int)Math.floor(yPos), "     ");
         }
         /**
          * Update the position based on current frame
          * @param frame
-         * @return array of render commands
+         * @param out receives the render commands
          */
-        public ArrayList<Renderer.RenderCommand> update(boolean frame)
+        public void update(boolean frame, Renderer.CommandBuffer out)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
             if(existing)
             {
                 if(frame)
                 {
-                    commands.add(new Renderer.RenderCommand((int)Math.floor(xPos), (int)Math.floor(yPos), "     "));
+                    out.add((int)Math.floor(xPos), (int)Math.floor(yPos), "     ");
                     yPos+=0.5;
                 }
                 if(yPos > yMax)
                     existing = false;
                 else
                 {
-                    commands.add(new Renderer.RenderCommand((int)Math.floor(xPos), (int)Math.floor(yPos), design, Color.GREEN));
+                    out.add((int)Math.floor(xPos), (int)Math.floor(yPos), design, Color.GREEN);
                 }
             }
-            return commands;
         }
     }
 
     /**
-     * The bullet class
+     * Stores all bullets as parallel arrays, one slot per bullet.
+     * Removed bullets are replaced by the last one, so the live bullets are always the first size() slots
      */
-    public static class Bullet
+    public static class BulletPool
     {
         private final String design = "*";
-        public int xPos, yPos;
-        private int yDelta;
-        private boolean isEnemy;
-        private Color color;
+        private int[] xPos, yPos, yDelta;
+        private boolean[] isEnemy;
+        private int size = 0;
 
-        public Bullet(int xPos, int yPos, MoveDirection dir, boolean isEnemy)
+        /**
+         * @param capacity initial number of slots, grows when full
+         */
+        public BulletPool(int capacity)
         {
-            this.xPos = xPos;
-            this.yPos = yPos;
-            this.isEnemy = isEnemy;
-            // dir can only be up or down
-            switch(dir)
+            xPos = new int[capacity];
+            yPos = new int[capacity];
+            yDelta = new int[capacity];
+            isEnemy = new boolean[capacity];
+        }
+
+        /**
+         * Add a new bullet
+         * @param x
+         * @param y
+         * @param dir can only be up or down
+         * @param enemy whether this bullet belongs to an enemy
+         */
+        public void add(int x, int y, MoveDirection dir, boolean enemy)
+        {
+            if(size == xPos.length)
             {
-                case DIR_UP:
-                    this.yDelta = -1;
-                    break;
-                case DIR_DOWN:
-                    this.yDelta = 1;
-                    break;
-                default:
-                    this.yDelta = 0;
-                    break;
+                int capacity = Math.max(16, size * 2);
+                xPos = Arrays.copyOf(xPos, capacity);
+                yPos = Arrays.copyOf(yPos, capacity);
+                yDelta = Arrays.copyOf(yDelta, capacity);
+                isEnemy = Arrays.copyOf(isEnemy, capacity);
             }
-            if(isEnemy)
-                color = Color.YELLOW;
-            else
-                color = Color.CYAN;
+            xPos[size] = x;
+            yPos[size] = y;
+            yDelta[size] = (dir == MoveDirection.DIR_UP) ? -1 : (dir == MoveDirection.DIR_DOWN) ? 1 : 0;
+            isEnemy[size] = enemy;
+            size++;
         }
 
         /**
-         * Update the bullet object based on current frame
+         * Update all bullets based on current frame
          * @param frame
-         * @return array of render commands
+         * @param out receives the render commands
          */
-        public ArrayList<Renderer.RenderCommand> update(boolean frame)
+        public void update(boolean frame, Renderer.CommandBuffer out)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
             if(frame)
             {
-                commands.add(new Renderer.RenderCommand(xPos, yPos, " "));
-                yPos += yDelta;
-                commands.add(new Renderer.RenderCommand(xPos, yPos, design, color));
+                for(int i = 0; i < size; i++)
+                    out.add(xPos[i], yPos[i], " ");
+                for(int i = 0; i < size; i++)
+                    yPos[i] += yDelta[i];
             }
-            else
-                commands.add(new Renderer.RenderCommand(xPos, yPos, design, color));
-            return commands;
+            for(int i = 0; i < size; i++)
+                out.add(xPos[i], yPos[i], design, isEnemy[i] ? Color.YELLOW : Color.CYAN);
         }
 
         /**
-         * Undraw the bullet after it explode (or hit)
-         * @return a render command
+         * Undraw a bullet after it explode (or hit), and remove it.
+         * The last bullet takes its slot
+         * @param i slot of the bullet
+         * @param out receives the render command
          */
-        public Renderer.RenderCommand explode()
+        public void explode(int i, Renderer.CommandBuffer out)
         {
-            return new Renderer.RenderCommand(xPos, yPos, " ");
+            out.add(xPos[i], yPos[i], " ");
+            size--;
+            xPos[i] = xPos[size];
+            yPos[i] = yPos[size];
+            yDelta[i] = yDelta[size];
+            isEnemy[i] = isEnemy[size];
         }
 
         /**
-         * Whether this bullet belongs to an enemy
+         * Remove all bullets without undrawing them
+         */
+        public void clear(){size = 0;}
+
+        public int size(){return size;}
+        public int getX(int i){return xPos[i];}
+        public int getY(int i){return yPos[i];}
+        /**
+         * Whether a bullet belongs to an enemy
+         * @param i slot of the bullet
          * @return boolean
          */
-        public boolean isEnemy(){return isEnemy;}
+        public boolean isEnemy(int i){return isEnemy[i];}
+    }
+
+    /**
+     * The shape of a ship type: its rows, where each row is drawn relative to the ship center,
+     * and the bounding box. Sprites are immutable and shared by all ships of a type
+     */
+    public static final class Sprite
+    {
+        private final String[] rows;
+        private final String[] cleanRows;
+        private final int[] rowX, rowY;
+        /**
+         * Offset from the center to the edges of the bounding box
+         */
+        public final int offsetX, offsetY;
+
+        /**
+         * @param rows the rows of the shape
+         * @param rowX horizontal position of each row, relative to the center
+         * @param rowY vertical position of each row, relative to the center
+         * @param offsetX
+         * @param offsetY
+         */
+        public Sprite(String[] rows, int[] rowX, int[] rowY, int offsetX, int offsetY)
+        {
+            this.rows = rows.clone();
+            this.rowX = rowX.clone();
+            this.rowY = rowY.clone();
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+            cleanRows = new String[rows.length];
+            for(int i = 0; i < rows.length; i++)
+                cleanRows[i] = " ".repeat(rows[i].length());
+        }
+
+        /**
+         * Draw the shape
+         * @param x center position
+         * @param y center position
+         * @param color
+         * @param out receives the render commands
+         */
+        public void draw(int x, int y, Color color, Renderer.CommandBuffer out)
+        {
+            for(int i = 0; i < rows.length; i++)
+                out.add(x + rowX[i], y + rowY[i], rows[i], color);
+        }
+
+        /**
+         * Undraw the shape
+         * @param x center position
+         * @param y center position
+         * @param out receives the render commands
+         */
+        public void clear(int x, int y, Renderer.CommandBuffer out)
+        {
+            for(int i = 0; i < rows.length; i++)
+                out.add(x + rowX[i], y + rowY[i], cleanRows[i]);
+        }
     }
 
+    /**
+     * Sprites of all ship types, see design.txt
+     */
+    public static final Sprite spriteMyShip = new Sprite(
+        new String[]{"A", "| |", "<=-=>"},
+        new int[]{0, -1, -2},
+        new int[]{-1, 0, 1}, 1, 2);
+    public static final Sprite spriteEnemyA = new Sprite(
+        new String[]{"<v>"},
+        new int[]{-1},
+        new int[]{0}, 1, 0);
+    public static final Sprite spriteEnemyB = new Sprite(
+        new String[]{"[===]", "( )", "v"},
+        new int[]{-2, -1, 0},
+        new int[]{-1, 0, 1}, 2, 1);
+    public static final Sprite spriteEnemyC = new Sprite(
+        new String[]{"<[-----]>", "#####", "%%%", "V"},
+        new int[]{-4, -2, -1, 0},
+        new int[]{-1, 0, 1, 2}, 4, 2);
+    public static final Sprite spriteEnemyD = new Sprite(
+        new String[]{
+            "<[-----------------------]>",
+            "[#####################]",
+            "-[---------------------]-",
+            "(0000000000000000000)",
+            "(1111111111111111111)",
+            "*******************",
+            "@@@@@@@@@@@@@@@@@@@@@",
+            "WWWWWWWWWWWWWWW",
+            "VVV  | |  VVV",
+            "V    W    V"},
+        new int[]{-13, -11, -12, -10, -10, -9, -10, -7, -6, -5},
+        new int[]{-4, -3, -2, -1, 0, 1, 2, 3, 4, 5}, 13, 5);
+
     /**
      * The abstract Space Ship class for all space ships
      */
@@ -182,46 +305,86 @@ public class GameObject
          * Set the center position of the ship
          */
         public int xPos, yPos;
+        /**
+         * Current HP of the ship
+         */
+        public int d_HP;
+        /**
+         * The shape of the ship, shared by all ships of a type
+         */
+        protected final Sprite sprite;
         /**
          * Whether the ship gets hit just now
          */
         protected boolean getHitJustNow;
         /**
-         * Update the ship position based on direction
-         * @param dir
-         * @return array of render commands
+         * The game time that shoot timeouts are measured in
          */
-        public abstract ArrayList<Renderer.RenderCommand> update(MoveDirection dir);
+        protected final LogicalClock clock;
         /**
-         * Explode the ship after it's dead
-         * @return array of render commands
+         * Move the ship by one cell, staying inside of its area
+         * @param dir
          */
-        public abstract ArrayList<Renderer.RenderCommand> explode();
+        protected abstract void move(MoveDirection dir);
         /**
          * Shoot bullets
-         * @return array of new bullets
+         * @param bullets receives the new bullets
          */
-        public abstract ArrayList<Bullet> shoot();
+        public abstract void shoot(BulletPool bullets);
         /**
-         * The ship gets hit by a bullet
-         * @return array of special render command
+         * Constructor of the abstract class
+         * @param sprite
+         * @param clock
          */
-        public abstract ArrayList<Renderer.RenderCommand> hit();
+        public SpaceShip(Sprite sprite, LogicalClock clock)
+        {
+            this.sprite = sprite;
+            this.clock = clock;
+            this.offsetX = sprite.offsetX;
+            this.offsetY = sprite.offsetY;
+        }
         /**
-         * Is the ship still alive?
-         * @return true or false
+         * Update the ship position based on direction
+         * @param dir
+         * @param out receives the render commands
+         */
+        public void update(MoveDirection dir, Renderer.CommandBuffer out)
+        {
+            if(dir != MoveDirection.DIR_NONE)
+                sprite.clear(xPos, yPos, out); // clear previous draw
+            move(dir);
+            // draw new body
+            Color color = Color.WHITE;
+            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
+            {
+                getHitJustNow = false;
+                color = Color.RED;
+            }
+            sprite.draw(xPos, yPos, color, out);
+        }
+        /**
+         * Explode the ship after it's dead
+         * @param out receives the render commands
          */
-        public abstract boolean isAlive();
+        public void explode(Renderer.CommandBuffer out)
+        {
+            sprite.clear(xPos, yPos, out);
+        }
         /**
-         * Constructor of the abstract class
-         * @param offsetX
-         * @param offsetY
+         * The ship gets hit by a bullet
+         * @param out receives the special render commands
          */
-        public SpaceShip(int offsetX, int offsetY)
+        public void hit(Renderer.CommandBuffer out)
         {
-            this.offsetX = offsetX;
-            this.offsetY = offsetY;
+            this.d_HP--;
+            getHitJustNow = true;
+            sprite.draw(xPos, yPos, Color.RED, out);
         }
+        /**
+         * Is the ship still alive?
+         * @return true or false
+         */
+        public boolean isAlive() {return this.d_HP > 0;}
     }
     
     /**
@@ -231,47 +394,46 @@ public class GameObject
     public static class MyShip extends SpaceShip
     {
         private int xMax, yMax;
-        public int d_HP;
+        private final int yMin; // the highest row my ship can fly to
 
-        private final String[] design = {"A", "| |", "<=-=>"};
-        private final String[] designClean = {" ", "   ", "     "};
         private final int[] possibleHPs = {30, 15, 8, 1};
+        private static final int maxGap = 10; // rows between the enemies and my ship at most, so both fit on a screen
         private int level;
-        // these 2 values define the shoot timeout
-        private final int shootTimeout = 150;
-        private long shootTimer = 0;
+        private static final int shootTimeout = 150; // milliseconds of game time between two shots
+        private final Cooldown shootCooldown;
 
-        public MyShip(int level, int xPos, int yPos, int xMax, int yMax)
+        public MyShip(int level, int xPos, int yPos, int xMax, int yMax, LogicalClock clock)
         {
-            super(1, 2);
+            super(spriteMyShip, clock);
             this.isEnemy = false;
             this.xPos = xPos; this.yPos = yPos;
             this.xMax = xMax; this.yMax = yMax;
+            this.yMin = topOf(yMax);
             // define HP by level
             level = (level > 0) ? level : 0;
             level = (level < 4) ? level : 3;
             d_HP = possibleHPs[level];
             this.level = level;
-            shootTimer = System.currentTimeMillis();
+            shootCooldown = new Cooldown(clock, shootTimeout);
             getHitJustNow = false;
         }
 
+        /**
+         * The highest row my ship can fly to: the bottom third of the arena,
+         * but in a tall arena no farther from the enemies in its top half than maxGap rows
+         * @param yMax bottom of the arena
+         * @return row
+         */
+        public static int topOf(int yMax){return Math.min(yMax/3*2, yMax/2 + maxGap);}
+
         /**
          * Recover to full HP
          */
         public void recover(){d_HP = possibleHPs[level];}
 
         @Override
-        public ArrayList<Renderer.RenderCommand> update(GameObject.MoveDirection dir) 
+        protected void move(MoveDirection dir)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            if(dir != MoveDirection.DIR_NONE)
-            {
-                // clear previous draw
-                commands.add(new Renderer.RenderCommand(xPos, yPos-1, designClean[0]));
-                commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[1]));
-                commands.add(new Renderer.RenderCommand(xPos-2, yPos+1, designClean[2]));
-            }
             switch(dir)
             {
                 case DIR_DOWN:
@@ -280,7 +442,7 @@ public class GameObject
                     break;
                 case DIR_UP:
                     yPos -= 1;
-                    yPos = (yPos < yMax/3*2) ? yMax/3*2 : yPos;
+                    yPos = (yPos < yMin) ? yMin : yPos;
                     break;
                 case DIR_LEFT:
                     xPos -= 1;
@@ -293,698 +455,993 @@ public class GameObject
                 default:
                     break;
             }
-            // draw new body
-            Color color = Color.WHITE;
-            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
-            {
-                getHitJustNow = false;
-                color = Color.RED;
-            }
-            commands.add(new Renderer.RenderCommand(xPos, yPos-1, design[0], color));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[1], color));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos+1, design[2], color));
-            return commands;
-        }
-
-        @Override
-        public ArrayList<Renderer.RenderCommand> explode() 
-        {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            // clear previous draw
-            commands.add(new Renderer.RenderCommand(xPos, yPos-1, designClean[0]));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[1]));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos+1, designClean[2]));
-            return commands;
         }
 
         @Override
-        public ArrayList<Bullet> shoot() 
+        public void shoot(BulletPool bullets)
         {
-            ArrayList<Bullet> newBullets = new ArrayList<>();
-            if(System.currentTimeMillis() - shootTimer > shootTimeout)
+            if(shootCooldown.ready())
             {
                 // my ship can only shoot one bullet a time
-                newBullets.add(new Bullet(xPos, yPos - 2, MoveDirection.DIR_UP, false));
-                shootTimer = System.currentTimeMillis();
+                bullets.add(xPos, yPos - 2, MoveDirection.DIR_UP, false);
+                shootCooldown.restart();
             }
-            return newBullets;
         }
+    }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> hit() 
+    /**
+     * The enemy types, the data that used to be a subclass per type.
+     * Each type moves inside its own area: between minY and yMax/2 - bottomMargin vertically,
+     * and its half width away from the sides horizontally
+     */
+    public static enum EnemyType
+    {
+        A(spriteEnemyA, 8, 1200, 0, 0),
+        B(spriteEnemyB, 15, 900, 1, 0),
+        C(spriteEnemyC, 30, 600, 1, 0),
+        D(spriteEnemyD, 50, 250, 4, 5); // the hidden boss
+        public final Sprite sprite;
+        public final int hp;
+        public final int shootTimeout; // milliseconds of game time between two shots
+        public final int minY;
+        public final int bottomMargin;
+        private EnemyType(Sprite sprite, int hp, int shootTimeout, int minY, int bottomMargin)
         {
-            this.d_HP--;
-            getHitJustNow = true;
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            commands.add(new Renderer.RenderCommand(xPos, yPos-1, design[0], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[1], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos+1, design[2], Color.RED));
-            return commands;
+            this.sprite = sprite;
+            this.hp = hp;
+            this.shootTimeout = shootTimeout;
+            this.minY = minY;
+            this.bottomMargin = bottomMargin;
         }
-        @Override
-        public boolean isAlive() {return this.d_HP > 0;}
     }
 
     /**
-     * Defines enemy ship A
-     * @see GameObject.SpaceShip
+     * Stores all enemies as dense component arrays, one index per enemy, like the bullet pool.
+     * Every tick, the systems of the game walk the arrays from the first index to the last.
+     * Removing enemies keeps the order of the others, so the game plays out the same as with a list.
+     * <p>
+     * An index only holds until the next removal. To refer to an enemy for longer, keep its handle:
+     * a slot number and the generation of the slot, so that a handle of a removed enemy is never mistaken for a new one.
+     * <p>
+     * Every enemy has its own random stream, split from the stream of the pool when it is added,
+     * so that the enemies can decide in any order, or in parallel, and still play out the same
      */
-    public static class EnemyA extends SpaceShip
+    public static class EnemyPool
     {
-        private int xMax, yMax;
-        private int d_HP;
+        private static final EnemyType[] types = EnemyType.values();
+        private static final MoveDirection[] directions = MoveDirection.values();
 
-        private final String[] design = {"<v>"};
-        private final String[] designClean = {"   "};
-        // these 2 values define the shoot timeout
-        private final int shootTimeout = 1200;
-        private long shootTimer = 0;
+        private final int xMax, yMax;
+        private final LogicalClock clock;
+        private final SplittableRandom spawnRandom;
+        // components, the live enemies are the first size() indices
+        private int[] xPos, yPos, hp;
+        private byte[] type; // ordinal of the EnemyType, which also selects the sprite
+        private long[] shotTick; // tick of the last shot, the shoot cooldown runs from there
+        private boolean[] hitJustNow;
+        private boolean[] bulletType; // the boss alternates between two bullet patterns
+        private SplittableRandom[] random;
+        // what each enemy decided to do in this tick
+        private byte[] intent; // ordinal of the MoveDirection
+        private boolean[] shootIntent;
+        private int[] slotOf;
+        private int size = 0;
+        // handles: the index of each slot, or -1 if the slot is free, and its generation
+        private int[] indexOf = new int[0];
+        private int[] generation = new int[0];
+        private int[] freeSlots = new int[0];
+        private int freeCount = 0;
 
-        public EnemyA(int xPos, int yPos, int xMax, int yMax)
+        /**
+         * @param capacity initial number of enemies, grows when full
+         * @param xMax right of the arena
+         * @param yMax bottom of the arena
+         * @param clock the game time that shoot timeouts are measured in
+         * @param seed the random streams of the enemies are split from this
+         */
+        public EnemyPool(int capacity, int xMax, int yMax, LogicalClock clock, long seed)
         {
-            super(1, 0);
-            this.isEnemy = true;
-            this.xPos = xPos; this.yPos = yPos;
-            this.xMax = xMax; this.yMax = yMax;
-            d_HP = 8;
-            shootTimer = System.currentTimeMillis();
-            getHitJustNow = false;
+            this.xMax = xMax;
+            this.yMax = yMax;
+            this.clock = clock;
+            spawnRandom = new SplittableRandom(seed);
+            xPos = new int[capacity];
+            yPos = new int[capacity];
+            hp = new int[capacity];
+            type = new byte[capacity];
+            shotTick = new long[capacity];
+            hitJustNow = new boolean[capacity];
+            bulletType = new boolean[capacity];
+            random = new SplittableRandom[capacity];
+            intent = new byte[capacity];
+            shootIntent = new boolean[capacity];
+            slotOf = new int[capacity];
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> update(GameObject.MoveDirection dir) 
+        /**
+         * Add a new enemy at the end, its shoot cooldown starts now
+         * @param enemyType
+         * @param x center position
+         * @param y center position
+         * @return handle of the enemy
+         */
+        public long add(EnemyType enemyType, int x, int y)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            if(dir != MoveDirection.DIR_NONE)
+            if(size == xPos.length)
             {
-                // clear previous draw
-                commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[0]));
+                int capacity = Math.max(16, size * 2);
+                xPos = Arrays.copyOf(xPos, capacity);
+                yPos = Arrays.copyOf(yPos, capacity);
+                hp = Arrays.copyOf(hp, capacity);
+                type = Arrays.copyOf(type, capacity);
+                shotTick = Arrays.copyOf(shotTick, capacity);
+                hitJustNow = Arrays.copyOf(hitJustNow, capacity);
+                bulletType = Arrays.copyOf(bulletType, capacity);
+                random = Arrays.copyOf(random, capacity);
+                intent = Arrays.copyOf(intent, capacity);
+                shootIntent = Arrays.copyOf(shootIntent, capacity);
+                slotOf = Arrays.copyOf(slotOf, capacity);
             }
-            switch(dir)
+            int slot;
+            if(freeCount > 0)
+                slot = freeSlots[--freeCount];
+            else
             {
-                case DIR_DOWN:
-                    yPos += 1;
-                    yPos = (yPos > yMax/2) ? yMax/2 : yPos;
-                    break;
-                case DIR_UP:
-                    yPos -= 1;
-                    yPos = (yPos < 0) ? 0 : yPos;
-                    break;
-                case DIR_LEFT:
-                    xPos -= 1;
-                    xPos = (xPos < 1) ? 1 : xPos;
-                    break;
-                case DIR_RIGHT:
-                    xPos += 1;
-                    xPos = (xPos > xMax-1) ? xMax-1 : xPos;
-                    break;
-                default:
-                    break;
+                slot = indexOf.length;
+                indexOf = Arrays.copyOf(indexOf, Math.max(16, slot * 2));
+                generation = Arrays.copyOf(generation, indexOf.length);
+                freeSlots = Arrays.copyOf(freeSlots, indexOf.length);
+                // the new slots beyond this one are free, handed out from the lowest
+                for(int s = indexOf.length - 1; s > slot; s--)
+                    freeSlots[freeCount++] = s;
             }
-            // draw new body
-            Color color = Color.WHITE;
-            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
+            indexOf[slot] = size;
+            xPos[size] = x;
+            yPos[size] = y;
+            hp[size] = enemyType.hp;
+            type[size] = (byte)enemyType.ordinal();
+            shotTick[size] = clock.getTicks();
+            hitJustNow[size] = false;
+            bulletType[size] = true;
+            random[size] = spawnRandom.split();
+            intent[size] = (byte)MoveDirection.DIR_NONE.ordinal();
+            shootIntent[size] = false;
+            slotOf[size] = slot;
+            size++;
+            return ((long)generation[slot] << 32) | slot;
+        }
+
+        /**
+         * Remove the dead enemies, the others keep their order. Handles of the removed enemies become invalid
+         * @return number of enemies removed
+         */
+        public int removeDead()
+        {
+            int kept = 0;
+            for(int i = 0; i < size; i++)
             {
-                getHitJustNow = false;
-                color = Color.RED;
+                if(hp[i] <= 0)
+                {
+                    release(slotOf[i]);
+                    continue;
+                }
+                if(kept != i)
+                {
+                    xPos[kept] = xPos[i];
+                    yPos[kept] = yPos[i];
+                    hp[kept] = hp[i];
+                    type[kept] = type[i];
+                    shotTick[kept] = shotTick[i];
+                    hitJustNow[kept] = hitJustNow[i];
+                    bulletType[kept] = bulletType[i];
+                    random[kept] = random[i];
+                    slotOf[kept] = slotOf[i];
+                    indexOf[slotOf[kept]] = kept;
+                }
+                kept++;
             }
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[0], color));
-            return commands;
+            int removed = size - kept;
+            size = kept;
+            return removed;
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> explode() 
+        /**
+         * Remove all enemies without undrawing them
+         */
+        public void clear()
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            // clear previous draw
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[0]));
-            return commands;
+            for(int i = 0; i < size; i++)
+                release(slotOf[i]);
+            size = 0;
         }
 
-        @Override
-        public ArrayList<Bullet> shoot() 
+        private void release(int slot)
         {
-            ArrayList<Bullet> newBullets = new ArrayList<>();
-            if(System.currentTimeMillis() - shootTimer > shootTimeout)
-            {
-                // enemy A can only shoot one bullet a time
-                newBullets.add(new Bullet(xPos, yPos + 1, MoveDirection.DIR_DOWN, true));
-                shootTimer = System.currentTimeMillis();
-            }
-            return newBullets;
+            indexOf[slot] = -1;
+            generation[slot]++;
+            freeSlots[freeCount++] = slot;
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> hit() 
+        /**
+         * The current index of an enemy
+         * @param handle
+         * @return index, or -1 if the enemy was removed
+         */
+        public int indexOf(long handle)
         {
-            this.d_HP--;
-            getHitJustNow = true;
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[0], Color.RED));
-            return commands;
+            int slot = (int)handle;
+            if(slot < 0 || slot >= indexOf.length || generation[slot] != (int)(handle >>> 32))
+                return -1;
+            return indexOf[slot];
         }
-        @Override
-        public boolean isAlive() {return this.d_HP > 0;}
-    }
 
-    /**
-     * Defines enemy ship B
-     * @see GameObject.SpaceShip
-     */
-    public static class EnemyB extends SpaceShip
-    {
-        private int xMax, yMax;
-        private int d_HP;
+        /**
+         * @param i index of the enemy
+         * @return handle of the enemy
+         */
+        public long handleOf(int i){return ((long)generation[slotOf[i]] << 32) | slotOf[i];}
 
-        private final String[] design = {"[===]", "( )", "v"};
-        private final String[] designClean = {"     ", "   ", " "};
-        // these 2 values define the shoot timeout
-        private final int shootTimeout = 900;
-        private long shootTimer = 0;
+        public int size(){return size;}
+        public int getX(int i){return xPos[i];}
+        public int getY(int i){return yPos[i];}
+        public int getHP(int i){return hp[i];}
+        public int getOffsetX(int i){return types[type[i]].sprite.offsetX;}
+        public int getOffsetY(int i){return types[type[i]].sprite.offsetY;}
+        public boolean isAlive(int i){return hp[i] > 0;}
+        /**
+         * The random stream of an enemy, only to be used by one thread at a time
+         * @param i index of the enemy
+         * @return SplittableRandom
+         */
+        public SplittableRandom getRandom(int i){return random[i];}
 
-        public EnemyB(int xPos, int yPos, int xMax, int yMax)
+        /**
+         * Set what an enemy wants to do in this tick. Threads may set the intents of different enemies at the same time
+         * @param i index of the enemy
+         * @param dir where to move
+         * @param shoot whether to shoot
+         */
+        public void setIntent(int i, MoveDirection dir, boolean shoot)
         {
-            super(2, 1);
-            this.isEnemy = true;
-            this.xPos = xPos; this.yPos = yPos;
-            this.xMax = xMax; this.yMax = yMax;
-            d_HP = 15;
-            shootTimer = System.currentTimeMillis();
-            getHitJustNow = false;
+            intent[i] = (byte)dir.ordinal();
+            shootIntent[i] = shoot;
         }
+        public MoveDirection getMoveIntent(int i){return directions[intent[i]];}
+        public boolean getShootIntent(int i){return shootIntent[i];}
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> update(GameObject.MoveDirection dir) 
+        /**
+         * Move an enemy by one cell, staying inside of the area of its type, and redraw it
+         * @param i index of the enemy
+         * @param dir
+         * @param out receives the render commands
+         */
+        public void move(int i, MoveDirection dir, Renderer.CommandBuffer out)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            if(dir != MoveDirection.DIR_NONE)
+            if(dir == MoveDirection.DIR_NONE)
             {
-                // clear previous draw
-                commands.add(new Renderer.RenderCommand(xPos-2, yPos-1, designClean[0]));
-                commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[1]));
-                commands.add(new Renderer.RenderCommand(xPos, yPos+1, designClean[2]));
+                draw(i, out);
+                return;
             }
+            EnemyType t = types[type[i]];
+            t.sprite.clear(xPos[i], yPos[i], out);
+            int marginX = t.sprite.offsetX;
             switch(dir)
             {
                 case DIR_DOWN:
-                    yPos += 1;
-                    yPos = (yPos > yMax/2) ? yMax/2 : yPos;
+                    yPos[i] = Math.min(yPos[i] + 1, yMax/2 - t.bottomMargin);
                     break;
                 case DIR_UP:
-                    yPos -= 1;
-                    yPos = (yPos < 1) ? 1 : yPos;
+                    yPos[i] = Math.max(yPos[i] - 1, t.minY);
                     break;
                 case DIR_LEFT:
-                    xPos -= 1;
-                    xPos = (xPos < 2) ? 2 : xPos;
+                    xPos[i] = Math.max(xPos[i] - 1, marginX);
                     break;
                 case DIR_RIGHT:
-                    xPos += 1;
-                    xPos = (xPos > xMax-2) ? xMax-2 : xPos;
+                    xPos[i] = Math.min(xPos[i] + 1, xMax - marginX);
                     break;
                 default:
                     break;
             }
-            // draw new body
+            t.sprite.draw(xPos[i], yPos[i], Color.WHITE, out);
+        }
+
+        /**
+         * Draw an enemy where it is, red once after it got hit
+         * @param i index of the enemy
+         * @param out receives the render commands
+         */
+        public void draw(int i, Renderer.CommandBuffer out)
+        {
             Color color = Color.WHITE;
-            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
+            if(hitJustNow[i])
             {
-                getHitJustNow = false;
+                hitJustNow[i] = false;
                 color = Color.RED;
             }
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos-1, design[0], color));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[1], color));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+1, design[2], color));
-            return commands;
+            types[type[i]].sprite.draw(xPos[i], yPos[i], color, out);
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> explode() 
+        /**
+         * The render system, draws all enemies where they are
+         * @param out receives the render commands
+         */
+        public void drawAll(Renderer.CommandBuffer out)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            // clear previous draw
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos-1, designClean[0]));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, designClean[1]));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+1, designClean[2]));
-            return commands;
+            for(int i = 0; i < size; i++)
+                draw(i, out);
         }
 
-        @Override
-        public ArrayList<Bullet> shoot() 
+        /**
+         * Shoot the bullets of the enemy's type, if its cooldown has passed
+         * @param i index of the enemy
+         * @param bullets receives the new bullets
+         */
+        public void shoot(int i, BulletPool bullets)
         {
-            ArrayList<Bullet> newBullets = new ArrayList<>();
-            if(System.currentTimeMillis() - shootTimer > shootTimeout)
+            EnemyType t = types[type[i]];
+            if(clock.getTicks() - shotTick[i] <= clock.ticksFor(t.shootTimeout))
+                return;
+            int x = xPos[i], y = yPos[i];
+            switch(t)
             {
-                // enemy B can only shoot one bullet a time
-                newBullets.add(new Bullet(xPos, yPos + 2, MoveDirection.DIR_DOWN, true));
-                shootTimer = System.currentTimeMillis();
+                case A:
+                    // enemy A can only shoot one bullet a time
+                    bullets.add(x, y + 1, MoveDirection.DIR_DOWN, true);
+                    break;
+                case B:
+                    // enemy B can only shoot one bullet a time
+                    bullets.add(x, y + 2, MoveDirection.DIR_DOWN, true);
+                    break;
+                case C:
+                    // enemy C can shoot two bullets a time
+                    bullets.add(x-2, y + 1, MoveDirection.DIR_DOWN, true);
+                    bullets.add(x+2, y + 1, MoveDirection.DIR_DOWN, true);
+                    break;
+                case D:
+                    if(bulletType[i])
+                    {
+                        // enemy D shoot three bullets a time
+                        bullets.add(x-5, y+6, MoveDirection.DIR_DOWN, true);
+                        bullets.add(x+5, y+6, MoveDirection.DIR_DOWN, true);
+                        bullets.add(x, y+6, MoveDirection.DIR_DOWN, true);
+                    }
+                    else
+                    {
+                        // enemy D shoot four bullets a time
+                        bullets.add(x-10, y+3, MoveDirection.DIR_DOWN, true);
+                        bullets.add(x+10, y+3, MoveDirection.DIR_DOWN, true);
+                        bullets.add(x-12, y-1, MoveDirection.DIR_DOWN, true);
+                        bullets.add(x+12, y-1, MoveDirection.DIR_DOWN, true);
+                    }
+                    bulletType[i] = !bulletType[i];
+                    break;
+                default:
+                    break;
             }
-            return newBullets;
+            shotTick[i] = clock.getTicks();
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> hit() 
+        /**
+         * The enemy gets hit by a bullet
+         * @param i index of the enemy
+         * @param out receives the special render commands
+         */
+        public void hit(int i, Renderer.CommandBuffer out)
         {
-            this.d_HP--;
-            getHitJustNow = true;
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos-1, design[0], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos, design[1], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+1, design[2], Color.RED));
-            return commands;
+            hp[i]--;
+            hitJustNow[i] = true;
+            types[type[i]].sprite.draw(xPos[i], yPos[i], Color.RED, out);
+        }
+
+        /**
+         * Undraw an enemy after it is dead
+         * @param i index of the enemy
+         * @param out receives the render commands
+         */
+        public void explode(int i, Renderer.CommandBuffer out)
+        {
+            types[type[i]].sprite.clear(xPos[i], yPos[i], out);
         }
-        @Override
-        public boolean isAlive() {return this.d_HP > 0;}
     }
 
     /**
-     * Defines enemy ship C
-     * @see GameObject.SpaceShip
+     * A uniform grid over the character cells, indexing which enemies cover each grid cell.
+     * Rebuilt every tick, so that finding the enemy at a position only tests the enemies in one grid cell
      */
-    public static class EnemyC extends SpaceShip
+    public static class SpatialGrid
     {
-        private int xMax, yMax;
-        private int d_HP;
+        private final int cellSize = 8; // width and height of a grid cell, in characters
+        private final int columns, rows;
+        // indices of the enemies covering grid cell c are entries[cellStart[c]] until entries[cellStart[c+1]]
+        private final int[] cellStart;
+        private final int[] cellFill;
+        private int[] entries = new int[64];
+        private EnemyPool enemies = null;
+        // the query that last found each enemy, so that an enemy covering several grid cells is found once
+        private int[] marks = new int[16];
+        private int query = 0;
+        private int[] found = new int[16];
 
-        private final String[] design = {"<[-----]>", "#####", "%%%", "V"};
-        private final String[] designClean = {"         ", "     ", "   ", " "};
-        // these 2 values define the shoot timeout
-        private final int shootTimeout = 600;
-        private long shootTimer = 0;
-
-        public EnemyC(int xPos, int yPos, int xMax, int yMax)
+        /**
+         * @param width width of the area, in characters
+         * @param height height of the area, in characters
+         */
+        public SpatialGrid(int width, int height)
         {
-            super(4, 2);
-            this.isEnemy = true;
-            this.xPos = xPos; this.yPos = yPos;
-            this.xMax = xMax; this.yMax = yMax;
-            d_HP = 30;
-            shootTimer = System.currentTimeMillis();
-            getHitJustNow = false;
+            columns = (width + cellSize - 1) / cellSize;
+            rows = (height + cellSize - 1) / cellSize;
+            cellStart = new int[columns * rows + 1];
+            cellFill = new int[columns * rows];
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> update(GameObject.MoveDirection dir) 
+        /**
+         * Index the enemies by the grid cells their bodies cover
+         * @param pool
+         */
+        public void rebuild(EnemyPool pool)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            if(dir != MoveDirection.DIR_NONE)
+            enemies = pool;
+            int count = pool.size();
+            if(marks.length < count)
+                marks = new int[count * 2];
+            Arrays.fill(cellStart, 0);
+            // count the enemies per cell, shifted by one for the prefix sum
+            int total = 0;
+            for(int i = 0; i < count; i++)
             {
-                // clear previous draw
-                commands.add(new Renderer.RenderCommand(xPos-4, yPos-1, designClean[0]));
-                commands.add(new Renderer.RenderCommand(xPos-2, yPos, designClean[1]));
-                commands.add(new Renderer.RenderCommand(xPos-1, yPos+1, designClean[2]));
-                commands.add(new Renderer.RenderCommand(xPos, yPos+2, designClean[3]));
-            }
-            switch(dir)
-            {
-                case DIR_DOWN:
-                    yPos += 1;
-                    yPos = (yPos > yMax/2) ? yMax/2 : yPos;
-                    break;
-                case DIR_UP:
-                    yPos -= 1;
-                    yPos = (yPos < 1) ? 1 : yPos;
-                    break;
-                case DIR_LEFT:
-                    xPos -= 1;
-                    xPos = (xPos < 4) ? 4 : xPos;
-                    break;
-                case DIR_RIGHT:
-                    xPos += 1;
-                    xPos = (xPos > xMax-4) ? xMax-4 : xPos;
-                    break;
-                default:
-                    break;
+                int x = pool.getX(i), y = pool.getY(i), ox = pool.getOffsetX(i), oy = pool.getOffsetY(i);
+                for(int gy = rowOf(y - oy); gy <= rowOf(y + oy); gy++)
+                    for(int gx = columnOf(x - ox); gx <= columnOf(x + ox); gx++)
+                    {
+                        cellStart[gy * columns + gx + 1]++;
+                        total++;
+                    }
             }
-            // draw new body
-            Color color = Color.WHITE;
-            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
+            for(int c = 1; c < cellStart.length; c++)
+                cellStart[c] += cellStart[c-1];
+            if(entries.length < total)
+                entries = new int[total * 2];
+            // fill the cells, enemies keep their order inside a cell
+            System.arraycopy(cellStart, 0, cellFill, 0, cellFill.length);
+            for(int i = 0; i < count; i++)
             {
-                getHitJustNow = false;
-                color = Color.RED;
+                int x = pool.getX(i), y = pool.getY(i), ox = pool.getOffsetX(i), oy = pool.getOffsetY(i);
+                for(int gy = rowOf(y - oy); gy <= rowOf(y + oy); gy++)
+                    for(int gx = columnOf(x - ox); gx <= columnOf(x + ox); gx++)
+                        entries[cellFill[gy * columns + gx]++] = i;
             }
-            commands.add(new Renderer.RenderCommand(xPos-4, yPos-1, design[0], color));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos, design[1], color));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos+1, design[2], color));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+2, design[3], color));
-            return commands;
-        }
-
-        @Override
-        public ArrayList<Renderer.RenderCommand> explode() 
-        {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            // clear previous draw
-            commands.add(new Renderer.RenderCommand(xPos-4, yPos-1, designClean[0]));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos, designClean[1]));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos+1, designClean[2]));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+2, designClean[3]));
-            return commands;
         }
 
-        @Override
-        public ArrayList<Bullet> shoot() 
+        /**
+         * Find the first enemy whose body covers a position
+         * @param x
+         * @param y
+         * @return index of the enemy, or -1 if there is none
+         */
+        public int find(int x, int y)
         {
-            ArrayList<Bullet> newBullets = new ArrayList<>();
-            if(System.currentTimeMillis() - shootTimer > shootTimeout)
+            if(x < 0 || y < 0 || x >= columns * cellSize || y >= rows * cellSize)
+                return -1;
+            int c = (y / cellSize) * columns + x / cellSize;
+            for(int e = cellStart[c]; e < cellStart[c+1]; e++)
             {
-                // enemy C can shoot two bullets a time
-                newBullets.add(new Bullet(xPos-2, yPos + 1, MoveDirection.DIR_DOWN, true));
-                newBullets.add(new Bullet(xPos+2, yPos + 1, MoveDirection.DIR_DOWN, true));
-                shootTimer = System.currentTimeMillis();
+                int i = entries[e];
+                if(Math.abs(x - enemies.getX(i)) <= enemies.getOffsetX(i) && Math.abs(y - enemies.getY(i)) <= enemies.getOffsetY(i))
+                    return i;
             }
-            return newBullets;
+            return -1;
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> hit() 
+        /**
+         * Collect the enemies whose bodies cover any grid cell of an area, each enemy once.
+         * The enemies may reach out of the area by less than a grid cell
+         * @param x0 left of the area
+         * @param y0 top of the area
+         * @param x1 right of the area
+         * @param y1 bottom of the area
+         * @return number of enemies found, their indices are given by getFound
+         */
+        public int query(int x0, int y0, int x1, int y1)
         {
-            this.d_HP--;
-            getHitJustNow = true;
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            commands.add(new Renderer.RenderCommand(xPos-4, yPos-1, design[0], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-2, yPos, design[1], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-1, yPos+1, design[2], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos, yPos+2, design[3], Color.RED));
-            return commands;
+            int count = 0;
+            query++;
+            for(int gy = rowOf(y0); gy <= rowOf(y1); gy++)
+                for(int gx = columnOf(x0); gx <= columnOf(x1); gx++)
+                {
+                    int c = gy * columns + gx;
+                    for(int e = cellStart[c]; e < cellStart[c+1]; e++)
+                    {
+                        int i = entries[e];
+                        if(marks[i] == query) continue;
+                        marks[i] = query;
+                        if(count == found.length)
+                            found = Arrays.copyOf(found, count * 2);
+                        found[count++] = i;
+                    }
+                }
+            return count;
         }
-        @Override
-        public boolean isAlive() {return this.d_HP > 0;}
+
+        /**
+         * @param k in [0, number returned by the last query)
+         * @return index of an enemy found by the last query
+         */
+        public int getFound(int k){return found[k];}
+
+        private int columnOf(int x){return Math.min(Math.max(x, 0), columns * cellSize - 1) / cellSize;}
+        private int rowOf(int y){return Math.min(Math.max(y, 0), rows * cellSize - 1) / cellSize;}
     }
 
     /**
-     * Defines enemy ship D (hidden boss)
-     * @see GameObject.SpaceShip
+     * Counts how many enemy bodies cover each character cell.
+     * Kept up to date as ships move, so overlap checks only look at the cells that matter.
+     * Cells outside of the area are never counted and always free
      */
-    public static class EnemyD extends SpaceShip
+    public static class OccupancyGrid
     {
-        private int xMax, yMax;
-        private int d_HP;
-        private final String[] design = {
-            "<[-----------------------]>",
-            "[#####################]",
-            "-[---------------------]-",
-            "(0000000000000000000)",
-            "(1111111111111111111)",
-            "*******************",
-            "@@@@@@@@@@@@@@@@@@@@@",
-            "WWWWWWWWWWWWWWW",
-            "VVV  | |  VVV",
-            "V    W    V"};
-        private final String[] designClean = {
-            "                           ",
-            "                       ",
-            "                         ",
-            "                     ",
-            "                     ",
-            "                   ",
-            "                     ",
-            "               ",
-            "             ",
-            "           "};
-        // these 2 values define the shoot timeout
-        private final int shootTimeout = 250;
-        private long shootTimer = 0;
-
-        private boolean bulletType = true; // indicate to switch bullet type
-
-        public EnemyD(int xPos, int yPos, int xMax, int yMax)
-        {
-            super(13, 5);
-            this.isEnemy = true;
-            this.xPos = xPos; this.yPos = yPos;
-            this.xMax = xMax; this.yMax = yMax;
-            d_HP = 50;
-            shootTimer = System.currentTimeMillis();
-            getHitJustNow = false;
+        private final int width, height;
+        private final byte[] cells;
+
+        /**
+         * @param width width of the area, in characters
+         * @param height height of the area, in characters
+         */
+        public OccupancyGrid(int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            cells = new byte[width * height];
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> update(GameObject.MoveDirection dir) 
+        /**
+         * Mark the body of an enemy
+         * @param enemies
+         * @param i index of the enemy
+         */
+        public void add(EnemyPool enemies, int i)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            if(dir != MoveDirection.DIR_NONE)
+            int x = enemies.getX(i), y = enemies.getY(i), ox = enemies.getOffsetX(i), oy = enemies.getOffsetY(i);
+            fill(x - ox, y - oy, x + ox, y + oy, 1);
+        }
+
+        /**
+         * Unmark the body of an enemy
+         * @param enemies
+         * @param i index of the enemy
+         */
+        public void remove(EnemyPool enemies, int i)
+        {
+            int x = enemies.getX(i), y = enemies.getY(i), ox = enemies.getOffsetX(i), oy = enemies.getOffsetY(i);
+            fill(x - ox, y - oy, x + ox, y + oy, -1);
+        }
+
+        /**
+         * Update the marks after an enemy moved.
+         * A move by one cell only updates the leading and trailing edges
+         * @param enemies
+         * @param i index of the enemy, at its new position
+         * @param oldX position before the move
+         * @param oldY position before the move
+         */
+        public void move(EnemyPool enemies, int i, int oldX, int oldY)
+        {
+            int x = enemies.getX(i), y = enemies.getY(i);
+            int dx = x - oldX;
+            int dy = y - oldY;
+            if(dx == 0 && dy == 0)
+                return;
+            int ox = enemies.getOffsetX(i), oy = enemies.getOffsetY(i);
+            if(dy == 0 && Math.abs(dx) == 1)
             {
-                // clear previous draw
-                commands.add(new Renderer.RenderCommand(xPos-13, yPos-4, designClean[0]));
-                commands.add(new Renderer.RenderCommand(xPos-11, yPos-3, designClean[1]));
-                commands.add(new Renderer.RenderCommand(xPos-12, yPos-2, designClean[2]));
-                commands.add(new Renderer.RenderCommand(xPos-10, yPos-1, designClean[3]));
-                commands.add(new Renderer.RenderCommand(xPos-10, yPos, designClean[4]));
-                commands.add(new Renderer.RenderCommand(xPos-9, yPos+1, designClean[5]));
-                commands.add(new Renderer.RenderCommand(xPos-10, yPos+2, designClean[6]));
-                commands.add(new Renderer.RenderCommand(xPos-7, yPos+3, designClean[7]));
-                commands.add(new Renderer.RenderCommand(xPos-6, yPos+4, designClean[8]));
-                commands.add(new Renderer.RenderCommand(xPos-5, yPos+5, designClean[9]));
+                int trailing = (dx > 0) ? oldX - ox : oldX + ox;
+                int leading = (dx > 0) ? x + ox : x - ox;
+                fill(trailing, oldY - oy, trailing, oldY + oy, -1);
+                fill(leading, oldY - oy, leading, oldY + oy, 1);
             }
-            switch(dir)
+            else if(dx == 0 && Math.abs(dy) == 1)
             {
-                case DIR_DOWN:
-                    yPos += 1;
-                    yPos = (yPos > yMax/2-5) ? yMax/2-5 : yPos;
-                    break;
-                case DIR_UP:
-                    yPos -= 1;
-                    yPos = (yPos < 4) ? 4 : yPos;
-                    break;
-                case DIR_LEFT:
-                    xPos -= 1;
-                    xPos = (xPos < 13) ? 13 : xPos;
-                    break;
-                case DIR_RIGHT:
-                    xPos += 1;
-                    xPos = (xPos > xMax-13) ? xMax-13 : xPos;
-                    break;
-                default:
-                    break;
+                int trailing = (dy > 0) ? oldY - oy : oldY + oy;
+                int leading = (dy > 0) ? y + oy : y - oy;
+                fill(oldX - ox, trailing, oldX + ox, trailing, -1);
+                fill(oldX - ox, leading, oldX + ox, leading, 1);
             }
-            // draw new body
-            Color color = Color.WHITE;
-            if(dir == MoveDirection.DIR_NONE && getHitJustNow)
+            else
             {
-                getHitJustNow = false;
-                color = Color.RED;
+                fill(oldX - ox, oldY - oy, oldX + ox, oldY + oy, -1);
+                add(enemies, i);
             }
-            commands.add(new Renderer.RenderCommand(xPos-13, yPos-4, design[0], color));
-            commands.add(new Renderer.RenderCommand(xPos-11, yPos-3, design[1], color));
-            commands.add(new Renderer.RenderCommand(xPos-12, yPos-2, design[2], color));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos-1, design[3], color));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos, design[4], color));
-            commands.add(new Renderer.RenderCommand(xPos-9, yPos+1, design[5], color));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos+2, design[6], color));
-            commands.add(new Renderer.RenderCommand(xPos-7, yPos+3, design[7], color));
-            commands.add(new Renderer.RenderCommand(xPos-6, yPos+4, design[8], color));
-            commands.add(new Renderer.RenderCommand(xPos-5, yPos+5, design[9], color));
-            return commands;
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> explode() 
-        {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            // clear previous draw
-            commands.add(new Renderer.RenderCommand(xPos-13, yPos-4, designClean[0]));
-            commands.add(new Renderer.RenderCommand(xPos-11, yPos-3, designClean[1]));
-            commands.add(new Renderer.RenderCommand(xPos-12, yPos-2, designClean[2]));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos-1, designClean[3]));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos, designClean[4]));
-            commands.add(new Renderer.RenderCommand(xPos-9, yPos+1, designClean[5]));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos+2, designClean[6]));
-            commands.add(new Renderer.RenderCommand(xPos-7, yPos+3, designClean[7]));
-            commands.add(new Renderer.RenderCommand(xPos-6, yPos+4, designClean[8]));
-            commands.add(new Renderer.RenderCommand(xPos-5, yPos+5, designClean[9]));
-            return commands;
+        /**
+         * Whether a body with the given offsets fits at a position without covering any other enemy
+         * @param x center position
+         * @param y center position
+         * @param offsetX
+         * @param offsetY
+         * @return boolean
+         */
+        public boolean isFree(int x, int y, int offsetX, int offsetY)
+        {
+            return isEmpty(x - offsetX, y - offsetY, x + offsetX, y + offsetY);
         }
 
-        @Override
-        public ArrayList<Bullet> shoot() 
+        /**
+         * Whether an enemy can move by one cell without covering any other enemy.
+         * Only the new edge of its body is checked, the rest is already its own
+         * @param enemies
+         * @param i index of the enemy
+         * @param dx -1, 0 or 1
+         * @param dy -1, 0 or 1
+         * @return boolean
+         */
+        public boolean canMove(EnemyPool enemies, int i, int dx, int dy)
         {
-            ArrayList<Bullet> newBullets = new ArrayList<>();
-            if(System.currentTimeMillis() - shootTimer > shootTimeout)
+            int x = enemies.getX(i), y = enemies.getY(i), ox = enemies.getOffsetX(i), oy = enemies.getOffsetY(i);
+            if(dx != 0)
             {
-                if(bulletType)
-                {
-                    // enemy D shoot three bullets a time
-                    newBullets.add(new Bullet(xPos-5, yPos+6, MoveDirection.DIR_DOWN, true));
-                    newBullets.add(new Bullet(xPos+5, yPos+6, MoveDirection.DIR_DOWN, true));
-                    newBullets.add(new Bullet(xPos, yPos+6, MoveDirection.DIR_DOWN, true));
-                }
-                else
-                {
-                    // enemy D shoot four bullets a time
-                    newBullets.add(new Bullet(xPos-10, yPos+3, MoveDirection.DIR_DOWN, true));
-                    newBullets.add(new Bullet(xPos+10, yPos+3, MoveDirection.DIR_DOWN, true));
-                    newBullets.add(new Bullet(xPos-12, yPos-1, MoveDirection.DIR_DOWN, true));
-                    newBullets.add(new Bullet(xPos+12, yPos-1, MoveDirection.DIR_DOWN, true));
-                }
-                bulletType = !bulletType;
-                shootTimer = System.currentTimeMillis();
+                int edge = x + dx * (ox + 1);
+                return isEmpty(edge, y - oy, edge, y + oy);
             }
-            return newBullets;
+            int edge = y + dy * (oy + 1);
+            return isEmpty(x - ox, edge, x + ox, edge);
         }
 
-        @Override
-        public ArrayList<Renderer.RenderCommand> hit() 
+        private boolean isEmpty(int x0, int y0, int x1, int y1)
         {
-            this.d_HP--;
-            getHitJustNow = true;
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            commands.add(new Renderer.RenderCommand(xPos-13, yPos-4, design[0], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-11, yPos-3, design[1], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-12, yPos-2, design[2], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos-1, design[3], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos, design[4], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-9, yPos+1, design[5], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-10, yPos+2, design[6], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-7, yPos+3, design[7], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-6, yPos+4, design[8], Color.RED));
-            commands.add(new Renderer.RenderCommand(xPos-5, yPos+5, design[9], Color.RED));
-            return commands;
+            x0 = Math.max(x0, 0); y0 = Math.max(y0, 0);
+            x1 = Math.min(x1, width - 1); y1 = Math.min(y1, height - 1);
+            for(int y = y0; y <= y1; y++)
+                for(int x = x0; x <= x1; x++)
+                    if(cells[y * width + x] != 0) return false;
+            return true;
+        }
+
+        private void fill(int x0, int y0, int x1, int y1, int delta)
+        {
+            x0 = Math.max(x0, 0); y0 = Math.max(y0, 0);
+            x1 = Math.min(x1, width - 1); y1 = Math.min(y1, height - 1);
+            for(int y = y0; y <= y1; y++)
+                for(int x = x0; x <= x1; x++)
+                    cells[y * width + x] += delta;
         }
-        @Override
-        public boolean isAlive() {return this.d_HP > 0;}
     }
 
     /**
-     * The background manager
+     * The background manager.
+     * Meteorite lines are kept in a ring buffer of rows, scrolling moves the start of the ring by one row.
+     * Meteorites are not drawn by commands, the renderer draws them as a layer behind everything else
      */
     public static class Background
     {
-        private final String design = "'"; // defines the shape of each meteorite
+        private final char design = '\''; // defines the shape of each meteorite
         private final int sparsity = 5; // in range (0, 1000), only defines horizontal sparsity
-        private LinkedList<ArrayList<Renderer.RenderCommand>> data;
+        private final double logSkip = Math.log(1.0 - sparsity / 1000.0);
+        // x positions of the meteorites of each row in the ring
+        private int[][] rowStars;
+        private int[] rowCount;
+        private int top = 0; // ring index of the row on top of the arena
+        private int viewX = 0, viewY = 0; // arena position of the top left cell of the screen
         private int xMax, yMax;
         private Random myRand;
 
         // xMax and yMax should be in terms of font size
-        public Background(int xMax, int yMax)
+        public Background(int xMax, int yMax, long seed)
         {
             this.xMax = xMax;
             this.yMax = yMax;
-            myRand = new Random();
-            data = new LinkedList<>();
+            myRand = new Random(seed);
+            rowStars = new int[yMax + 1][4];
+            rowCount = new int[yMax + 1];
             for(int i = 0; i <= this.yMax; i++)
-            {
-                data.add(randomizeNewLine(i));
-            }
+                randomizeNewLine(i);
+        }
+
+        /**
+         * Update the background, every line moves down by one row
+         */
+        public void update()
+        {
+            // the bottom row leaves the screen, its slot becomes the new top row
+            top = (top == 0) ? yMax : top - 1;
+            randomizeNewLine(top);
         }
 
         /**
-         * Update the background
-         * @return array of render commands
+         * Set the part of the arena that drawLayer draws
+         * @param x arena position of the top left cell of the screen
+         * @param y arena position of the top left cell of the screen
          */
-        public ArrayList<Renderer.RenderCommand> update()
+        public void setView(int x, int y)
         {
-            ArrayList<Renderer.RenderCommand> commands = new ArrayList<>();
-            
-            for(int i = 0; i < data.size() - 1; i++)
+            viewX = x;
+            viewY = y;
+        }
+
+        /**
+         * Draw the meteorites on screen into the blank cells of a screen
+         * @param cells
+         */
+        public void drawLayer(Renderer.CellBuffer cells)
+        {
+            int rows = Math.min(yMax + 1 - viewY, cells.height);
+            for(int y = 0; y < rows; y++)
             {
-                ArrayList<Renderer.RenderCommand> thisline = data.get(i);
-                for(int j = 0; j < thisline.size(); j++)
+                int r = top + viewY + y;
+                if(r > yMax) r -= yMax + 1;
+                int[] stars = rowStars[r];
+                int rowStart = y * cells.width - viewX;
+                // the meteorites of a row are sorted by position, only the ones on screen are visited
+                int j = (viewX > 0) ? Arrays.binarySearch(stars, 0, rowCount[r], viewX) : 0;
+                if(j < 0) j = -j - 1;
+                for(; j < rowCount[r] && stars[j] - viewX < cells.width; j++)
                 {
-                    Renderer.RenderCommand cm = thisline.get(j);
-                    commands.add(new Renderer.RenderCommand(cm.getX(), cm.getY(), " ")); // remove previous draw
-                    cm.setY(cm.getY() + 1); // update data
-                    commands.add(new Renderer.RenderCommand(cm.getX(), cm.getY(), cm.getData())); // draw new data
+                    int i = rowStart + stars[j];
+                    if(cells.chars[i] == ' ')
+                    {
+                        cells.chars[i] = design;
+                        cells.colors[i] = 0;
+                    }
                 }
             }
-            // process the last line
-            ArrayList<Renderer.RenderCommand> lastline = data.get(data.size()-1);
-            for(int j = 0; j < lastline.size(); j++)
+        }
+
+        /**
+         * Randomize a new line of meteorites for background.
+         * Instead of a random draw per column, the gap to the next meteorite is drawn from the geometric distribution
+         * @param r ring index of the line
+         */
+        private void randomizeNewLine(int r)
+        {
+            rowCount[r] = 0;
+            int x = nextGap() - 1;
+            while(x <= xMax)
             {
-                Renderer.RenderCommand cm = lastline.get(j);
-                commands.add(new Renderer.RenderCommand(cm.getX(), cm.getY(), " "));
+                if(rowCount[r] == rowStars[r].length)
+                    rowStars[r] = Arrays.copyOf(rowStars[r], rowCount[r] * 2);
+                rowStars[r][rowCount[r]++] = x;
+                x += nextGap();
             }
-            // randomize a new line and add to front
-            ArrayList<Renderer.RenderCommand> newline = randomizeNewLine(0);
-            data.removeLast();
-            data.addFirst(newline);
-            commands.addAll(newline);
+        }
 
-            return commands;
+        /**
+         * Distance to the next meteorite in a line
+         * @return at least 1
+         */
+        private int nextGap()
+        {
+            return 1 + (int)(Math.log(1.0 - myRand.nextDouble()) / logSkip);
         }
+    }
+
+    /**
+     * The logical game time, advanced once per logic tick.
+     * Timeouts read this clock instead of the wall clock, so a game runs the same at any speed
+     */
+    public static class LogicalClock
+    {
+        private int tickRate;
+        private long ticks = 0;
+
+        /**
+         * @param tickRate logic ticks per second of game time
+         */
+        public LogicalClock(int tickRate){this.tickRate = tickRate;}
 
         /**
-         * Randomize a new line of meteorites for background
-         * @param y (which line)
-         * @return array of render commands
+         * Advance by one logic tick
          */
-        private ArrayList<Renderer.RenderCommand> randomizeNewLine(int y)
+        public void tick(){ticks++;}
+        /**
+         * Number of ticks since the game started
+         * @return ticks
+         */
+        public long getTicks(){return ticks;}
+        public void setTickRate(int tickRate){this.tickRate = tickRate;}
+        /**
+         * Number of ticks that last the given game time
+         * @param millis
+         * @return ticks
+         */
+        public long ticksFor(int millis){return (long)millis * tickRate / 1000;}
+    }
+
+    /**
+     * A cooldown in game time, e.g. between two shots.
+     * It counts logic ticks, so it follows the time scale of the game and costs no system call
+     */
+    public static class Cooldown
+    {
+        private final LogicalClock clock;
+        private final int timeout;
+        private long startTick;
+
+        /**
+         * The cooldown starts running when created
+         * @param clock
+         * @param timeout milliseconds of game time
+         */
+        public Cooldown(LogicalClock clock, int timeout)
         {
-            ArrayList<Renderer.RenderCommand> newline = new ArrayList<>();
-            for(int i = 0; i <= xMax; i++)
-            {
-                if(myRand.nextInt(1000) < sparsity)
-                {
-                    newline.add(new Renderer.RenderCommand(i, y, design));
-                }
-            }
-            return newline;
+            this.clock = clock;
+            this.timeout = timeout;
+            restart();
         }
+
+        /**
+         * Whether the cooldown has passed
+         * @return boolean
+         */
+        public boolean ready(){return clock.getTicks() - startTick > clock.ticksFor(timeout);}
+        /**
+         * Start the cooldown again from now
+         */
+        public void restart(){startTick = clock.getTicks();}
     }
 
     /**
-     * The fps controller object
+     * The game clock, a fixed-timestep scheduler based on System.nanoTime.
+     * Logic ticks run at a fixed rate through an accumulator, frames are rendered at their own rate.
+     * Under load rendering is skipped, logic ticks are never dropped.
+     * A time scale runs the ticks faster or slower than real time, the frame rate stays the same
      */
-    public static class FPSController
+    public static class GameClock
     {
+        private final long realTickNanos; // tick interval at time scale 1
+        private long tickNanos;
+        private double timeScale = 1.0;
+        private int maxTicks = maxTicksPerUpdate;
+        private final long frameNanos;
+        private final long lateTolerance; // a frame presented later than this is counted as late
+        private final long maxBacklog = 1000000000L; // backlog longer than this (e.g. system sleep) resets the clock
+        private static final int maxTicksPerUpdate = 8; // at most this many ticks are run between two frame checks, at time scale 1
+        private final int maxFrameSkip = 5; // at most this many frames are skipped in a row
         private long tPrev = 0;
-        private long tNow = 0;
-        private long spf = 0;
+        private long accumulator = 0;
+        private long nextFrame = 0;
+        private int framesSkipped = 0;
+        // statistics
+        private long ticks = 0;
+        private long frames = 0;
+        private long lateFrames = 0;
+        private long droppedFrames = 0;
         private final long finalPauseTimeout = 1000;
         private final long normalPauseTimeout = 10;
 
-        public FPSController(int fps)
+        /**
+         * @param tickRate logic ticks per second
+         * @param frameRate rendered frames per second
+         * @throws IllegalArgumentException if a rate is below 1
+         */
+        public GameClock(int tickRate, int frameRate)
         {
-            this.spf = (long)(1000 / (float)fps);
-            tPrev = System.currentTimeMillis();
-            tNow = System.currentTimeMillis();
+            if(tickRate < 1 || frameRate < 1)
+                throw new IllegalArgumentException("tick and frame rates must be at least 1: " + tickRate + ", " + frameRate);
+            realTickNanos = 1000000000L / tickRate;
+            tickNanos = realTickNanos;
+            frameNanos = 1000000000L / frameRate;
+            lateTolerance = frameNanos / 2;
+            start();
         }
 
         /**
-         * Update time, and pause the thread to limit fps
+         * Reset the clock, the first tick and frame are due immediately
          */
-        public void update()
+        public void start()
+        {
+            tPrev = System.nanoTime();
+            accumulator = tickNanos;
+            nextFrame = tPrev;
+            framesSkipped = 0;
+        }
+
+        /**
+         * Advance the clock to now
+         * @return number of logic ticks that should be run now
+         */
+        public int advance()
         {
-            tNow = System.currentTimeMillis();
-            long delta = tNow - tPrev;
-            if(delta < spf)
+            long tNow = System.nanoTime();
+            accumulator += tNow - tPrev;
+            tPrev = tNow;
+            if(accumulator > maxBacklog)
             {
-                try
-                {
-                    Thread.sleep(spf - delta);
-                }catch(InterruptedException e)
-                {
-                    System.out.println("Thread sleep interrupted");
-                    Thread.currentThread().interrupt();
-                }
+                // the process was suspended, do not try to catch up
+                accumulator = tickNanos;
+                nextFrame = tNow;
             }
-            tPrev = System.currentTimeMillis();
+            int due = (int)Math.min(accumulator / tickNanos, maxTicks);
+            accumulator -= due * tickNanos;
+            ticks += due;
+            return due;
         }
 
         /**
-         * Normal pause
+         * Whether a frame should be rendered now.
+         * Missed frames are dropped, and rendering is skipped while logic ticks are still behind
+         * @return true if a frame should be rendered
          */
-        public void pause()
+        public boolean frameDue()
         {
-            try
+            long tNow = System.nanoTime();
+            if(tNow < nextFrame)
+                return false;
+            long behind = tNow - nextFrame;
+            if(behind >= frameNanos)
             {
-                Thread.sleep(normalPauseTimeout);
-            }catch(InterruptedException e)
+                // whole frame periods passed without rendering, they are dropped
+                droppedFrames += behind / frameNanos;
+                nextFrame += (behind / frameNanos) * frameNanos;
+                behind %= frameNanos;
+            }
+            nextFrame += frameNanos;
+            if(accumulator >= tickNanos && framesSkipped < maxFrameSkip)
             {
-                System.out.println("Thread sleep interrupted");
-                Thread.currentThread().interrupt();
+                // logic is behind, skip rendering to catch up
+                droppedFrames++;
+                framesSkipped++;
+                return false;
             }
+            if(behind > lateTolerance)
+                lateFrames++;
+            framesSkipped = 0;
+            frames++;
+            return true;
         }
 
+        /**
+         * Wait until the next tick or frame is due
+         */
+        public void idle()
+        {
+            long tickDue = tPrev + (tickNanos - accumulator);
+            long deadline = Math.min(tickDue, nextFrame);
+            long remaining = deadline - System.nanoTime();
+            // sleep is coarse, leave the last millisecond to yielding
+            while(remaining > 0 && !Thread.currentThread().isInterrupted())
+            {
+                if(remaining > 2000000L)
+                    sleep((remaining - 1000000L) / 1000000L);
+                else
+                    Thread.yield();
+                remaining = deadline - System.nanoTime();
+            }
+        }
+
+        /**
+         * Run the logic ticks faster (scale > 1) or slower (scale < 1) than real time
+         * @param scale game seconds per real second
+         */
+        public void setTimeScale(double scale)
+        {
+            if(scale <= 0)
+                throw new IllegalArgumentException("time scale must be positive: " + scale);
+            timeScale = scale;
+            tickNanos = Math.max(1, (long)(realTickNanos / scale));
+            maxTicks = Math.max(maxTicksPerUpdate, (int)Math.ceil(maxTicksPerUpdate * scale));
+            accumulator = Math.min(accumulator, tickNanos);
+        }
+
+        public double getTimeScale(){return timeScale;}
+        public long getTicks(){return ticks;}
+        public long getFrames(){return frames;}
+        public long getLateFrames(){return lateFrames;}
+        public long getDroppedFrames(){return droppedFrames;}
+
+        /**
+         * Normal pause
+         */
+        public void pause(){sleep(normalPauseTimeout);}
+
         /**
          * Final pause after game over
          */
-        public void finalPause()
+        public void finalPause(){sleep(finalPauseTimeout);}
+
+        private void sleep(long millis)
         {
             try
             {
-                Thread.sleep(finalPauseTimeout);
+                Thread.sleep(millis);
             }catch(InterruptedException e)
             {
                 System.out.println("Thread sleep interrupted");
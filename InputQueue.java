@@ -0,0 +1,97 @@
+// This file passes the key events to the game thread
+
+/**
+ * A lock-free queue of timestamped control events, from one producer thread (the event dispatch thread)
+ * to one consumer thread (the game thread).
+ * <p>
+ * The game thread drains the queue once per tick. A control that was pressed during the tick counts as pressed
+ * for that tick even if it was released again, so a tap shorter than a tick is never lost.
+ * The time from an event to the tick that applies it is recorded as the input latency.
+ * <p>
+ * When the game thread stalls and the queue fills up, new presses are dropped, but releases never are:
+ * the last slots are kept for them, so that a key is never left held
+ */
+public class InputQueue
+{
+    private static final int capacity = 256; // a power of two
+
+    private final long[] times = new long[capacity];
+    private final byte[] events = new byte[capacity]; // control index, plus pressed in the highest bit
+    // slots are written before the index that publishes them, and read after the index is read
+    private volatile long writeIndex = 0;
+    private volatile long readIndex = 0;
+    // only used by the producer
+    private int queuedHeld = 0; // bits of the controls held as far as the queued events go
+    // written by the producer only, read for the statistics
+    private volatile long dropped = 0;
+    // only used by the consumer
+    private final boolean[] held;
+    private final FrameProfiler.Histogram latency = new FrameProfiler.Histogram();
+
+    /**
+     * @param controls number of controls
+     */
+    public InputQueue(int controls)
+    {
+        held = new boolean[controls];
+    }
+
+    /**
+     * Queue a press or release, never blocks. Called by the producer thread
+     * @param control index of the control
+     * @param pressed
+     */
+    public void offer(int control, boolean pressed)
+    {
+        int bit = 1 << control;
+        if(pressed == ((queuedHeld & bit) != 0))
+            return; // a key repeat, or the release of a dropped press, changes nothing
+        long w = writeIndex;
+        // a release always finds a slot: one is kept for every control, and only a held control is released
+        if(pressed && w - readIndex > capacity - held.length - 1)
+        {
+            dropped++; // the game thread is stalled, the press is lost
+            return;
+        }
+        queuedHeld ^= bit;
+        int slot = (int)(w & (capacity - 1));
+        times[slot] = System.nanoTime();
+        events[slot] = (byte)(control | (pressed ? 0x80 : 0));
+        writeIndex = w + 1;
+    }
+
+    /**
+     * Apply the queued events, and give the control state of this tick. Called by the consumer thread
+     * @param control receives the state, held or pressed since the last drain
+     */
+    public void drain(boolean[] control)
+    {
+        System.arraycopy(held, 0, control, 0, held.length);
+        long r = readIndex;
+        long w = writeIndex;
+        if(r == w) return;
+        long tNow = System.nanoTime();
+        for(; r < w; r++)
+        {
+            int slot = (int)(r & (capacity - 1));
+            int index = events[slot] & 0x7F;
+            boolean pressed = (events[slot] & 0x80) != 0;
+            latency.record(tNow - times[slot]);
+            held[index] = pressed;
+            if(pressed)
+                control[index] = true; // latched until the end of this tick
+        }
+        readIndex = w;
+    }
+
+    /**
+     * Statistics of the queue for the final summary
+     * @return String, or null if no events were queued
+     */
+    public String statistics()
+    {
+        if(latency.getCount() == 0) return null;
+        return String.format("Input latency of %d events: p50 %.2f ms, p99 %.2f ms, max %.2f ms (%d dropped)",
+            latency.getCount(), latency.percentile(0.5) / 1e6, latency.percentile(0.99) / 1e6, latency.getMax() / 1e6, dropped);
+    }
+}
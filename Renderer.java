@@ -1,8 +1,12 @@
 import java.util.Random;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
 import java.awt.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.WindowEvent;
@@ -19,57 +23,188 @@ public class Renderer implements KeyListener
 {
     // variables related to the window
     private JFrame myFrame = null;
-    private MyPanel myPanel = null;
+    private Display myDisplay = null;
     private final int frameWidth = 600;
     private final int frameHeight = 600;
+    // character size used when there is no panel to measure the font
+    private final int headlessChrWidth = 7;
+    private final int headlessChrHeight = 15;
     
     // game status and properties
-    private boolean gameExit = false;
-    private boolean gameStart = false;
-    private int maxPosX, maxPosY;
-    private final int fps = 60;
+    private volatile boolean gameExit = false; // set by the input thread
+    private volatile boolean gameStart = false;
+    private final boolean headless;
+    private final long seed; // all randomness of the game is derived from this seed
+    private int maxPosX, maxPosY; // the last cell of the arena
+    private int viewWidth, viewHeight; // cells shown on the screen
+    private int cameraX = 0, cameraY = 0; // arena position of the top left cell of the screen
+    private final boolean scrolling; // whether the arena is larger than the screen
+    private int fps = 60; // rendered frames per second
+    private int tps = 30; // logic ticks per second
     //                           UP     DOWN   LEFT   RIGHT  SHOOT
-    private boolean[] control = {false, false, false, false, false};
+    private boolean[] tickControl = {false, false, false, false, false}; // the control state used by the current tick
+    private final InputQueue input = new InputQueue(tickControl.length); // key events, from the event dispatch thread
+    private ControlSource controlSource = null; // replaces the keyboard if set
+    private Replay.Recorder recorder = null;
+    private FrameTrace.Recorder frameTrace = null;
+    private SpectatorServer spectators = null;
     private int score = 0; // how many enemies defeated
     private int scoreRound = 0; // how many rounds survived
     
     // game objects
-    private GameObject.FPSController objFPSController;
+    private GameObject.GameClock objClock;
+    private GameObject.LogicalClock objGameTime;
+    private final FrameProfiler profiler = new FrameProfiler();
+    private volatile boolean showOverlay = false; // toggled by F3
     private GameObject.Background objBackground;
     private GameObject.MyShip objMyShip;
     private GameObject.RecoveryPack objRecovery;
-    private LinkedList<GameObject.SpaceShip> objEnemies;
-    private LinkedList<GameObject.Bullet> objBullets;
-    private final int maxEnemiesSpawned = 5; // how many enemies can be spawned at most
-    private final int minEnemiesSpawned = 1; // how many enemies can be spawned at least
+    private GameObject.EnemyPool objEnemies;
+    private GameObject.BulletPool objBullets;
+    private GameObject.SpatialGrid objEnemyGrid;
+    private GameObject.OccupancyGrid objEnemyOccupancy;
+    private int maxEnemiesSpawned = 5; // how many enemies can be spawned at most
+    private int minEnemiesSpawned = 1; // how many enemies can be spawned at least
+    private int swarmSize = 0; // how many enemies a swarm round spawns, 0 for no swarm rounds
+    private static final int swarmInterval = 3; // every third round is a swarm, unless it is a boss fight
+    // the smallest arena: the boss is 27 cells wide and 10 rows high, and has to fit above my ship
+    public static final int minArenaWidth = 32;
+    public static final int minArenaHeight = 24;
+    private static final int shipStartDepth = 20; // rows below the enemies my ship starts at, at most
+    // enemies farther away from my ship hold fire, the whole default arena is in range.
+    // Vertically the range reaches 80 rows into the enemies from where my ship starts, whatever the height of the arena
+    private static final int fireRangeX = 100;
+    private static final int fireRangeY = shipStartDepth + 80;
+    private static final int parallelDecideThreshold = 2048; // smaller waves decide on the game thread, forking costs more
     private Random enemyRand;
+    // commands collected during a tick, reused every tick
+    private CommandBuffer commands = new CommandBuffer();
+    // texts of the UI, kept until their values change
+    private String myHP, myScore, myRound, myBossHP;
+    private int uiHP, uiScore, uiRound, uiBossHP;
+    private boolean bossShown = false; // whether the HP of the boss is on screen
+    private long bossHandle = -1; // the boss of this round, found again every tick while the indices change
+
+    // statistics of the headless loop
+    private long headlessTicks = 0;
+    private long headlessNanos = 0;
 
     public Renderer(int level)
     {
-        // initalize JPanel
-        myPanel = new MyPanel();
-        myPanel.setPreferredSize(new Dimension(frameWidth, frameHeight));
-        maxPosX = frameWidth / myPanel.chrWidth - 1;
-        maxPosY = frameHeight / myPanel.chrHeight - 1;
-        // initialize new JFrame
-        myFrame = new JFrame("Space Invader");
-        myFrame.add(myPanel);
-        myFrame.setResizable(false);
-        myFrame.addKeyListener(this);
-        myFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        myFrame.pack();
-        myFrame.setLocationRelativeTo(null);
-        myFrame.setVisible(true);
-        myFrame.setBackground(Color.BLACK);
-        myFrame.setAlwaysOnTop(true);
-        // initialize game objects
-        enemyRand = new Random(System.currentTimeMillis());
-        objFPSController = new GameObject.FPSController(fps);
-        objBackground = new GameObject.Background(maxPosX, maxPosY);
-        objMyShip = new GameObject.MyShip(level, maxPosX / 2, maxPosY - 1, maxPosX, maxPosY);
-        objRecovery = new GameObject.RecoveryPack(maxPosX, maxPosY);
-        objEnemies = new LinkedList<>();
-        objBullets = new LinkedList<>();
+        this(level, false);
+    }
+
+    /**
+     * @param level difficulty level
+     * @param headless if true, no window is created and the game runs without AWT
+     */
+    public Renderer(int level, boolean headless)
+    {
+        this(level, headless, System.currentTimeMillis());
+    }
+
+    /**
+     * @param level difficulty level
+     * @param headless if true, no window is created and the game runs without AWT
+     * @param seed the same seed and input always give the same game
+     */
+    public Renderer(int level, boolean headless, long seed)
+    {
+        this(level, headless ? DisplayMode.HEADLESS : DisplayMode.PANEL, seed);
+    }
+
+    /**
+     * @param level difficulty level
+     * @param mode how frames are shown
+     * @param seed the same seed and input always give the same game
+     */
+    public Renderer(int level, DisplayMode mode, long seed)
+    {
+        this(level, mode, seed, 0, 0);
+    }
+
+    /**
+     * An arena larger than the screen is shown through a camera that follows my ship
+     * @param level difficulty level
+     * @param mode how frames are shown
+     * @param seed the same seed and input always give the same game
+     * @param arenaWidth width of the world in cells, 0 for the width of the screen
+     * @param arenaHeight height of the world in cells, 0 for the height of the screen
+     * @throws IllegalArgumentException if the arena is smaller than minArenaWidth by minArenaHeight
+     */
+    public Renderer(int level, DisplayMode mode, long seed, int arenaWidth, int arenaHeight)
+    {
+        if((arenaWidth != 0 && arenaWidth < minArenaWidth) || (arenaHeight != 0 && arenaHeight < minArenaHeight))
+            throw new IllegalArgumentException("the arena must be at least " + minArenaWidth + "x" + minArenaHeight);
+        this.headless = (mode == DisplayMode.HEADLESS);
+        this.seed = seed;
+        profiler.setEnabled(!headless); // headless runs are timed as a whole, e.g. by the batch runner
+        if(headless)
+        {
+            viewWidth = frameWidth / headlessChrWidth;
+            viewHeight = frameHeight / headlessChrHeight;
+        }
+        else if(mode == DisplayMode.TERMINAL)
+        {
+            // the same screen as a window, one terminal cell per character cell
+            viewWidth = frameWidth / headlessChrWidth;
+            viewHeight = frameHeight / headlessChrHeight;
+            myDisplay = new TerminalDisplay(viewWidth, viewHeight, profiler);
+            controlSource = new TerminalDisplay.Keyboard(this);
+        }
+        else
+        {
+            // initalize the panel, or the canvas for active rendering
+            Component content;
+            if(mode == DisplayMode.ACTIVE)
+            {
+                ActiveCanvas canvas = new ActiveCanvas();
+                myDisplay = canvas;
+                content = canvas;
+            }
+            else
+            {
+                MyPanel panel = new MyPanel();
+                myDisplay = panel;
+                content = panel;
+            }
+            viewWidth = myDisplay.getCells().width;
+            viewHeight = myDisplay.getCells().height;
+            // initialize new JFrame
+            myFrame = new JFrame("Space Invader");
+            myFrame.add(content);
+            myFrame.setResizable(false);
+            myFrame.addKeyListener(this);
+            myFrame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+            myFrame.pack();
+            myFrame.setLocationRelativeTo(null);
+            myFrame.setVisible(true);
+            myFrame.setBackground(Color.BLACK);
+            myFrame.setAlwaysOnTop(true);
+        }
+        maxPosX = ((arenaWidth > 0) ? arenaWidth : viewWidth) - 1;
+        maxPosY = ((arenaHeight > 0) ? arenaHeight : viewHeight) - 1;
+        scrolling = (maxPosX + 1 > viewWidth || maxPosY + 1 > viewHeight);
+        // initialize game objects, each random object gets its own seed from the game seed
+        Random seeds = new Random(seed);
+        enemyRand = new Random(seeds.nextLong());
+        objClock = new GameObject.GameClock(tps, fps);
+        objGameTime = new GameObject.LogicalClock(tps);
+        objBackground = new GameObject.Background(maxPosX, maxPosY, seeds.nextLong());
+        // in a tall arena my ship starts close enough to the enemies to see them
+        int shipY = Math.min(maxPosY - 1, maxPosY / 2 + shipStartDepth);
+        objMyShip = new GameObject.MyShip(level, maxPosX / 2, shipY, maxPosX, maxPosY, objGameTime);
+        objRecovery = new GameObject.RecoveryPack(maxPosX, maxPosY, seeds.nextLong());
+        objEnemies = new GameObject.EnemyPool(64, maxPosX, maxPosY, objGameTime, seeds.nextLong());
+        objBullets = new GameObject.BulletPool(64);
+        objEnemyGrid = new GameObject.SpatialGrid(maxPosX + 1, maxPosY + 1);
+        objEnemyOccupancy = new GameObject.OccupancyGrid(maxPosX + 1, maxPosY + 1);
+        if(scrolling)
+        {
+            // commands outside of the screen are dropped as they are added
+            commands.setView(cameraX, cameraY, viewWidth, viewHeight);
+            followShip();
+        }
     }
 
     /**
@@ -80,79 +215,354 @@ public class Renderer implements KeyListener
         // first render the start screen
         while(!gameStart)
         {
-            myPanel.addCommand(new RenderCommand(maxPosX / 2 - 12, maxPosY / 2, "Welcome to Space Invader!"));
-            myPanel.addCommand(new RenderCommand(maxPosX / 2 - 10, maxPosY / 2+1, "Press ENTER to start"));
-            myPanel.repaint();
-            objFPSController.pause();
+            myDisplay.addCommand(new RenderCommand(viewWidth / 2 - 12, viewHeight / 2, "Welcome to Space Invader!"));
+            myDisplay.addCommand(new RenderCommand(viewWidth / 2 - 10, viewHeight / 2+1, "Press ENTER to start"));
+            myDisplay.present(null);
+            input.drain(tickControl); // keep the held keys, and the queue from filling up
+            objClock.pause();
         }
-        myPanel.addCommand(new RenderCommand(maxPosX / 2 - 12, maxPosY / 2, "                         "));
-        myPanel.addCommand(new RenderCommand(maxPosX / 2 - 10, maxPosY / 2+1, "                    "));
-        myPanel.repaint();
-        boolean frame = false; // use this variable to slow down drawing
+        myDisplay.addCommand(new RenderCommand(viewWidth / 2 - 12, viewHeight / 2, "                         "));
+        myDisplay.addCommand(new RenderCommand(viewWidth / 2 - 10, viewHeight / 2+1, "                    "));
+        myDisplay.present(objBackground);
+        objClock.start();
         while(!gameExit)
         {
-            objFPSController.update();
-            render(frame);
-            renderUI();
-            frame = !frame;
-            myPanel.repaint(); // refresh the frame to update content
+            long tFrame = profiler.begin(FrameProfiler.Phase.FRAME);
+            int ticks = objClock.advance();
+            for(int i = 0; i < ticks && !gameExit; i++)
+                tick();
+            boolean frameDue = objClock.frameDue();
+            if(frameDue)
+            {
+                present(); // refresh the frame to update content
+            }
+            if(ticks > 0 || frameDue)
+                profiler.end(FrameProfiler.Phase.FRAME, tFrame);
+            objClock.idle();
+        }
+        objClock.finalPause();
+    }
+
+    /**
+     * Set the logic tick rate and the render frame rate
+     * @param tickRate logic ticks per second
+     * @param frameRate rendered frames per second
+     */
+    public void setRates(int tickRate, int frameRate)
+    {
+        tps = tickRate;
+        fps = frameRate;
+        double timeScale = objClock.getTimeScale();
+        objClock = new GameObject.GameClock(tps, fps);
+        objClock.setTimeScale(timeScale);
+        objGameTime.setTickRate(tps);
+    }
+
+    /**
+     * Run the game faster or slower than real time, e.g. 4 for fast-forward or 0.25 for slow motion.
+     * The game itself plays the same, only ticks come sooner or later. Headless runs are not paced at all
+     * @param scale game seconds per real second
+     */
+    public void setTimeScale(double scale){objClock.setTimeScale(scale);}
+
+    /**
+     * Let every third round be a swarm, e.g. tens of thousands of enemies in a large arena
+     * @param size enemies spawned by a swarm round, 0 for no swarm rounds
+     */
+    public void setSwarmSize(int size){swarmSize = size;}
+    public int getSwarmSize(){return swarmSize;}
+
+    /**
+     * Leave the start screen, like pressing ENTER
+     */
+    public void startGame(){gameStart = true;}
+    /**
+     * End the game, like pressing ESC
+     */
+    public void stopGame(){gameExit = true;}
+    /**
+     * Show or hide the frame timing overlay, like pressing F3
+     */
+    public void toggleOverlay(){showOverlay = !showOverlay;}
+
+    /**
+     * Take the control state of each tick from a source instead of the keyboard, e.g. a replay.
+     * The game ends when the source has no more input
+     * @param source
+     */
+    public void setControlSource(ControlSource source){controlSource = source;}
+
+    /**
+     * Trace every presented frame. Without a window, a frame is presented every tick
+     * @param trace
+     */
+    public void setFrameTrace(FrameTrace.Recorder trace)
+    {
+        frameTrace = trace;
+        if(headless)
+        {
+            // the headless loop is not real time, it may wait for the writer
+            trace.setLossless(true);
+            if(myDisplay == null)
+                myDisplay = new CellDisplay(viewWidth, viewHeight);
+        }
+    }
+
+    /**
+     * Stream every presented frame to spectators. Without a window, a frame is presented every tick
+     * @param server
+     */
+    public void setSpectatorServer(SpectatorServer server)
+    {
+        spectators = server;
+        if(myDisplay == null)
+            myDisplay = new CellDisplay(viewWidth, viewHeight);
+    }
+
+    /**
+     * Record the control state of each tick
+     * @param recorder
+     */
+    public void setRecorder(Replay.Recorder recorder){this.recorder = recorder;}
+
+    public long getSeed(){return seed;}
+    public int getTickRate(){return tps;}
+    public int getMaxPosX(){return maxPosX;}
+    public int getMaxPosY(){return maxPosY;}
+    /**
+     * Size of the screen in cells, smaller than the arena when the camera scrolls
+     * @return cells
+     */
+    public int getViewWidth(){return viewWidth;}
+    public int getViewHeight(){return viewHeight;}
+    /**
+     * Number of logic ticks run so far
+     * @return ticks
+     */
+    public long getTicks(){return objGameTime.getTicks();}
+    public int getScore(){return score;}
+    public int getRounds(){return scoreRound;}
+    public boolean isGameOver(){return !objMyShip.isAlive();}
+    public FrameProfiler getProfiler(){return profiler;}
+
+    /**
+     * Run one logic tick: move everything, then redraw the ships
+     * so that they are not left damaged by erased bullets and meteorites
+     * @return false if the tick did not run, because the control source has no more input
+     */
+    boolean tick()
+    {
+        long t = profiler.begin(FrameProfiler.Phase.INPUT);
+        boolean hasInput = sampleInput();
+        profiler.end(FrameProfiler.Phase.INPUT, t);
+        if(!hasInput)
+        {
+            gameExit = true; // no more input to replay
+            return false;
         }
-        objFPSController.finalPause();
+        t = profiler.begin(FrameProfiler.Phase.LOGIC);
+        render(true);
+        profiler.end(FrameProfiler.Phase.LOGIC, t);
+        t = profiler.begin(FrameProfiler.Phase.RENDER);
+        if(scrolling)
+            followShip();
+        render(false);
+        submit();
+        profiler.end(FrameProfiler.Phase.RENDER, t);
+        objGameTime.tick();
+        return true;
     }
 
     /**
-     * Create render commands to render UI
+     * Take the control state for this tick, and record it
+     * @return false if the control source has no more input
+     */
+    private boolean sampleInput()
+    {
+        if(controlSource != null)
+        {
+            if(!controlSource.next(tickControl))
+                return false;
+        }
+        else
+            input.drain(tickControl);
+        if(recorder != null)
+            recorder.record(tickControl);
+        return true;
+    }
+
+    /**
+     * The headless game loop, runs the simulation as fast as possible without any window.
+     * Stops when the game is over or after the given number of ticks
+     * @param maxTicks maximum number of ticks to run, 0 for no limit
+     * @return number of ticks simulated
+     */
+    public long loopHeadless(long maxTicks)
+    {
+        long tStart = System.nanoTime();
+        long ticks = 0;
+        while(!gameExit && (maxTicks <= 0 || ticks < maxTicks))
+        {
+            if(!tick())
+                break;
+            if(myDisplay != null)
+                present(); // e.g. for a frame trace
+            else
+                renderUI();
+            ticks++;
+        }
+        headlessNanos += System.nanoTime() - tStart;
+        headlessTicks += ticks;
+        return ticks;
+    }
+
+    /**
+     * Ticks per second sustained by the headless loop so far
+     * @return ticks per second
+     */
+    public double headlessTicksPerSecond()
+    {
+        if(headlessNanos <= 0) return 0;
+        return headlessTicks * 1e9 / headlessNanos;
+    }
+
+    /**
+     * Present the current frame on the panel
+     */
+    void present()
+    {
+        renderUI();
+        long t = profiler.begin(FrameProfiler.Phase.PRESENT);
+        myDisplay.setOverlay(showOverlay ? profiler.overlay(objEnemies.size(), objBullets.size()) : null);
+        myDisplay.present(objBackground);
+        if(frameTrace != null)
+            frameTrace.capture(myDisplay.getCells(), objBackground, objGameTime.getTicks());
+        if(spectators != null)
+            spectators.publish(myDisplay.getCells(), objBackground, objGameTime.getTicks());
+        profiler.end(FrameProfiler.Phase.PRESENT, t);
+    }
+
+    /**
+     * Send the collected commands to the panel, or drop them when running headless.
+     * The command buffer is reused for the next tick
+     */
+    private void submit()
+    {
+        if(myDisplay != null)
+            myDisplay.addCommand(commands);
+        commands.reset();
+    }
+
+    /**
+     * Create render commands to render UI.
+     * The texts are only rebuilt when the values change. During a boss fight the HP of the boss is shown too
      */
     private void renderUI()
     {
-        String myHP    = "HP    = " + String.format("%02d", objMyShip.d_HP);
-        String myScore = "Score = " + score;
-        String myRound = "Round = " + scoreRound;
-        myPanel.addCommand(new RenderCommand(1, 0, myHP));
-        myPanel.addCommand(new RenderCommand(1, 1, myScore));
-        myPanel.addCommand(new RenderCommand(1, 2, myRound));
+        if(uiHP != objMyShip.d_HP || myHP == null)
+        {
+            uiHP = objMyShip.d_HP;
+            myHP = "HP    = " + String.format("%02d", uiHP);
+        }
+        if(uiScore != score || myScore == null)
+        {
+            uiScore = score;
+            myScore = "Score = " + uiScore;
+        }
+        if(uiRound != scoreRound || myRound == null)
+        {
+            uiRound = scoreRound;
+            myRound = "Round = " + uiRound;
+        }
+        int boss = objEnemies.indexOf(bossHandle);
+        int bossHP = (boss >= 0) ? Math.max(objEnemies.getHP(boss), 0) : 0;
+        if(uiBossHP != bossHP || myBossHP == null)
+        {
+            uiBossHP = bossHP;
+            myBossHP = "Boss  = " + String.format("%02d", uiBossHP);
+        }
+        if(myDisplay == null) return;
+        long t = profiler.begin(FrameProfiler.Phase.UI);
+        myDisplay.addCommand(1, 0, myHP);
+        myDisplay.addCommand(1, 1, myScore);
+        myDisplay.addCommand(1, 2, myRound);
+        if(uiBossHP > 0)
+        {
+            myDisplay.addCommand(1, 3, myBossHP);
+            bossShown = true;
+        }
+        else if(bossShown)
+        {
+            myDisplay.addCommand(1, 3, "          "); // the boss is gone
+            bossShown = false;
+        }
+        profiler.end(FrameProfiler.Phase.UI, t);
     }
 
     /**
-     * Collect render command and send to JPanel
-     * @param frame
+     * Collect render commands
+     * @param frame true to move the objects, false to only redraw them
      */
     private void render(boolean frame)
     {
-        ArrayList<RenderCommand> commands = new ArrayList<>();
-        commands.addAll(objBackground.update());
+        objBackground.update();
         if(frame)
             processLogic();
         else
         {
-            commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_NONE));
-            for(GameObject.SpaceShip ship : objEnemies)
-                commands.addAll(ship.update(GameObject.MoveDirection.DIR_NONE));
+            objMyShip.update(GameObject.MoveDirection.DIR_NONE, commands);
+            if(scrolling)
+            {
+                // only the enemies on screen, found in the grid rebuilt by this tick's logic
+                int visible = objEnemyGrid.query(cameraX, cameraY, cameraX + viewWidth - 1, cameraY + viewHeight - 1);
+                for(int k = 0; k < visible; k++)
+                    objEnemies.draw(objEnemyGrid.getFound(k), commands);
+            }
+            else
+                objEnemies.drawAll(commands);
         }
-        for(GameObject.Bullet bullet : objBullets)
-            commands.addAll(bullet.update(frame));
-        commands.addAll(objRecovery.update(frame));
-        myPanel.addCommand(commands);
+        objBullets.update(frame, commands);
+        objRecovery.update(frame, commands);
+    }
+
+    /**
+     * Move the camera so that my ship is in the middle of the screen horizontally and in its bottom quarter,
+     * with the enemies above it in view, as far as the arena allows.
+     * After a move, everything drawn so far is at the wrong place: the screen is cleared,
+     * and the redraw pass of the tick draws what is on screen at the new place
+     */
+    private void followShip()
+    {
+        int x = Math.min(Math.max(objMyShip.xPos - viewWidth / 2, 0), Math.max(maxPosX + 1 - viewWidth, 0));
+        int y = Math.min(Math.max(objMyShip.yPos - viewHeight * 3 / 4, 0), Math.max(maxPosY + 1 - viewHeight, 0));
+        if(x == cameraX && y == cameraY)
+            return;
+        cameraX = x;
+        cameraY = y;
+        commands.reset();
+        commands.setView(cameraX, cameraY, viewWidth, viewHeight);
+        objBackground.setView(cameraX, cameraY);
+        if(myDisplay != null)
+            myDisplay.getCells().clear();
     }
 
     /**
      * Process internal game logic (body movements, bullet hit, random spawned enemies)
      */
-    private void processLogic()
+    void processLogic()
     {
-        ArrayList<RenderCommand> commands = new ArrayList<>();
         // update my ship direction based on control input
-        if(control[0]) commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_UP));
-        else if(control[1]) commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_DOWN));
-        else if(control[2]) commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_LEFT));
-        else if(control[3]) commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_RIGHT));
-        else commands.addAll(objMyShip.update(GameObject.MoveDirection.DIR_NONE));
-        if(control[4]) objBullets.addAll(objMyShip.shoot());
+        if(tickControl[0]) objMyShip.update(GameObject.MoveDirection.DIR_UP, commands);
+        else if(tickControl[1]) objMyShip.update(GameObject.MoveDirection.DIR_DOWN, commands);
+        else if(tickControl[2]) objMyShip.update(GameObject.MoveDirection.DIR_LEFT, commands);
+        else if(tickControl[3]) objMyShip.update(GameObject.MoveDirection.DIR_RIGHT, commands);
+        else objMyShip.update(GameObject.MoveDirection.DIR_NONE, commands);
+        if(tickControl[4]) objMyShip.shoot(objBullets);
         // process recovery pack
         if(!objRecovery.exist())
         {
             if(enemyRand.nextInt(100) < 1) // 1/100 possibility to appear
-                commands.add(objRecovery.appear());
+                objRecovery.appear(commands);
         }
         else
         {
@@ -160,256 +570,370 @@ public class Renderer implements KeyListener
                Math.abs((int)Math.floor(objRecovery.yPos) - objMyShip.yPos) < (objMyShip.offsetY + 1))
             {
                 objMyShip.recover();
-                commands.add(objRecovery.disappear());
+                objRecovery.disappear(commands);
             }
         }
         // process enemies
         if(objEnemies.size() <= 0)
+            spawnEnemies(); // randomly spawn enemies if num enemy is 0
+        for(int ship = 0; ship < objEnemies.size(); ship++)
         {
-            // randomly spawn enemies if num enemy is 0
-            scoreRound++;
-            if(scoreRound % 5 == 0)
+            // check if alive
+            if(!objEnemies.isAlive(ship))
             {
-                // every 5 rounds, spawn a boss fight
-                objEnemies.add(new GameObject.EnemyD(maxPosX / 2, 5, maxPosX, maxPosY));
+                score++;
+                objEnemies.explode(ship, commands);
+                objEnemyOccupancy.remove(objEnemies, ship);
+            }
+        }
+        objEnemies.removeDead(); // remove dead ships
+        // every enemy decides what to do, only reading the state at this point, in parallel for large waves
+        int count = objEnemies.size();
+        if(count >= parallelDecideThreshold)
+            IntStream.range(0, count).parallel().forEach(this::decide);
+        else
+        {
+            for(int ship = 0; ship < count; ship++)
+                decide(ship);
+        }
+        // then the decisions are applied in order, a move into a place taken by an earlier enemy is dropped
+        for(int ship = 0; ship < count; ship++)
+        {
+            GameObject.MoveDirection finalChoice = objEnemies.getMoveIntent(ship);
+            if(finalChoice != GameObject.MoveDirection.DIR_NONE &&
+               !objEnemyOccupancy.canMove(objEnemies, ship, finalChoice.dx, finalChoice.dy))
+                finalChoice = GameObject.MoveDirection.DIR_NONE;
+            int oldX = objEnemies.getX(ship), oldY = objEnemies.getY(ship);
+            objEnemies.move(ship, finalChoice, commands);
+            objEnemyOccupancy.move(objEnemies, ship, oldX, oldY);
+            if(objEnemies.getShootIntent(ship))
+                objEnemies.shoot(ship, objBullets);
+        }
+        processBullets();
+        // if my ship is not alive, set it to null
+        if(!objMyShip.isAlive())
+        {
+            objMyShip.explode(commands);
+            gameExit = true;
+        }
+    }
+
+    /**
+     * Decide where an enemy moves and whether it shoots.
+     * Randomly move on Y axis, move following my ship on X axis.
+     * Reads the game state but changes nothing except the enemy's intent and random stream, so enemies can decide in parallel
+     * @param ship index of the enemy
+     */
+    private void decide(int ship)
+    {
+        // all random numbers are drawn up front, the same count every tick
+        SplittableRandom rand = objEnemies.getRandom(ship);
+        int horiOrVert = rand.nextInt(2);
+        int stay = rand.nextInt(2);
+        int vertical = rand.nextInt(2);
+        int opposite = rand.nextInt(5);
+        int shoot = rand.nextInt(10);
+        GameObject.MoveDirection finalChoice = GameObject.MoveDirection.DIR_NONE;
+        // 50% possibility to stay still, to reduce unnatural movements
+        if(stay > 0)
+        {
+            if(horiOrVert == 0)
+            {
+                // move horizontally
+                int desiredDir = (objMyShip.xPos >= objEnemies.getX(ship)) ? 1 : -1; // move towards my ship
+                // check validity
+                boolean validDir = objEnemyOccupancy.canMove(objEnemies, ship, desiredDir, 0);
+                boolean validOppositeDir = objEnemyOccupancy.canMove(objEnemies, ship, -desiredDir, 0); // not valid to move opposite way if false
+                if(validDir)
+                    finalChoice = (desiredDir < 0) ? GameObject.MoveDirection.DIR_LEFT : GameObject.MoveDirection.DIR_RIGHT;
+                else if(validOppositeDir)
+                {
+                    // only 1/5 possibility to stay still
+                    if(opposite > 0)
+                        finalChoice = (desiredDir > 0) ? GameObject.MoveDirection.DIR_LEFT : GameObject.MoveDirection.DIR_RIGHT;
+                }
             }
             else
             {
-                int num = enemyRand.nextInt((maxEnemiesSpawned - minEnemiesSpawned) + 1) + minEnemiesSpawned;
-                for(int i = 0; i < num; i++)
+                // move vertically
+                int desiredDir = (vertical > 0) ? 1 : -1; // 50% possibility
+                // check validity
+                boolean validDir = objEnemyOccupancy.canMove(objEnemies, ship, 0, desiredDir);
+                boolean validOppositeDir = objEnemyOccupancy.canMove(objEnemies, ship, 0, -desiredDir); // not valid to move opposite way if false
+                if(validDir)
+                    finalChoice = (desiredDir < 0) ? GameObject.MoveDirection.DIR_UP : GameObject.MoveDirection.DIR_DOWN;
+                else if(validOppositeDir)
                 {
-                    int enemyType = enemyRand.nextInt(1000); // [0, 50) - Enemy C, [50, 400) - Enemy B, [400, 1000) - Enemy A
-                    if(enemyType < 50)
-                    {
-                        // set offsets of Ship C
-                        int offsetX = 4; int offsetY = 2;
-                        int maxTry = 10;
-                        while(maxTry > 0)
-                        {
-                            int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
-                            int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
-                            boolean goodPos = true;
-                            for(GameObject.SpaceShip ship : objEnemies)
-                            {
-                                if(Math.abs(ship.xPos - posX) < (ship.offsetX + offsetX + 1) && Math.abs(ship.yPos - posY) < (ship.offsetY + offsetY + 1))
-                                {
-                                    // overlap detected
-                                    goodPos = false;
-                                    break;
-                                }
-                            }
-                            if(goodPos)
-                            {
-                                objEnemies.add(new GameObject.EnemyC(posX, posY, maxPosX, maxPosY));
-                                break;
-                            }
-                            maxTry--;
-                        }
-                    }
-                    else if(enemyType < 400)
-                    {
-                        // set offsets of Ship B
-                        int offsetX = 2; int offsetY = 1;
-                        int maxTry = 10;
-                        while(maxTry > 0)
-                        {
-                            int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
-                            int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
-                            boolean goodPos = true;
-                            for(GameObject.SpaceShip ship : objEnemies)
-                            {
-                                if(Math.abs(ship.xPos - posX) < (ship.offsetX + offsetX + 1) && Math.abs(ship.yPos - posY) < (ship.offsetY + offsetY + 1))
-                                {
-                                    // overlap detected
-                                    goodPos = false;
-                                    break;
-                                }
-                            }
-                            if(goodPos)
-                            {
-                                objEnemies.add(new GameObject.EnemyB(posX, posY, maxPosX, maxPosY));
-                                break;
-                            }
-                            maxTry--;
-                        }
-                    }
-                    else
-                    {
-                        // set offsets of Ship A
-                        int offsetX = 1; int offsetY = 0;
-                        int maxTry = 10;
-                        while(maxTry > 0)
-                        {
-                            int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
-                            int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
-                            boolean goodPos = true;
-                            for(GameObject.SpaceShip ship : objEnemies)
-                            {
-                                if(Math.abs(ship.xPos - posX) < (ship.offsetX + offsetX + 1) && Math.abs(ship.yPos - posY) < (ship.offsetY + offsetY + 1))
-                                {
-                                    // overlap detected
-                                    goodPos = false;
-                                    break;
-                                }
-                            }
-                            if(goodPos)
-                            {
-                                objEnemies.add(new GameObject.EnemyA(posX, posY, maxPosX, maxPosY));
-                                break;
-                            }
-                            maxTry--;
-                        }
-                    }
+                    // only 1/5 possibility to stay unmoved
+                    if(opposite > 1)
+                        finalChoice = (desiredDir > 0) ? GameObject.MoveDirection.DIR_UP : GameObject.MoveDirection.DIR_DOWN;
                 }
             }
         }
-        ListIterator<GameObject.SpaceShip> enemyIter = objEnemies.listIterator();
-        while(enemyIter.hasNext())
+        // randomly trigger shoot, enemies far away from my ship hold fire
+        objEnemies.setIntent(ship, finalChoice, shoot > 2 && inFireRange(ship));
+    }
+
+    /**
+     * Whether an enemy is close enough to my ship to shoot.
+     * The range does not depend on the screen, so that a game plays the same on any screen
+     * @param i index of the enemy
+     * @return boolean
+     */
+    private boolean inFireRange(int i)
+    {
+        return Math.abs(objEnemies.getX(i) - objMyShip.xPos) <= fireRangeX && Math.abs(objEnemies.getY(i) - objMyShip.yPos) <= fireRangeY;
+    }
+
+    /**
+     * Start a new round, spawn a boss every 5 rounds, a swarm every 3 rounds if enabled, otherwise some random enemies
+     */
+    void spawnEnemies()
+    {
+        scoreRound++;
+        if(scoreRound % 5 == 0)
+        {
+            // every 5 rounds, spawn a boss fight
+            bossHandle = addEnemy(GameObject.EnemyType.D, maxPosX / 2, 5);
+        }
+        else
         {
-            // randomly move on Y axis
-            // move following my ship on X axis
-            GameObject.SpaceShip ship = enemyIter.next();
-            // check if alive
-            if(!ship.isAlive())
-            {
-                score++;
-                commands.addAll(ship.explode());
-                enemyIter.remove(); // remove dead ship
-                continue;
-            }
-            int horiOrVert = enemyRand.nextInt(2);
-            GameObject.MoveDirection finalChoice = GameObject.MoveDirection.DIR_NONE;
-            // 50% possibility to stay still, to reduce unnatural movements
-            if(enemyRand.nextInt(2) > 0)
+            int num;
+            if(swarmSize > 0 && scoreRound % swarmInterval == 0)
+                num = swarmSize; // as many as fit
+            else
+                num = enemyRand.nextInt((maxEnemiesSpawned - minEnemiesSpawned) + 1) + minEnemiesSpawned;
+            for(int i = 0; i < num; i++)
             {
-                if(horiOrVert == 0)
+                int enemyType = enemyRand.nextInt(1000); // [0, 50) - Enemy C, [50, 400) - Enemy B, [400, 1000) - Enemy A
+                if(enemyType < 50)
                 {
-                    // move horizontally
-                    int desiredDir = (objMyShip.xPos >= ship.xPos) ? 1 : -1; // move towards my ship
-                    // check validity
-                    boolean validDir = true;
-                    boolean validOppositeDir = true;
-                    for(GameObject.SpaceShip otherShip : objEnemies)
+                    // set offsets of Ship C
+                    int offsetX = 4; int offsetY = 2;
+                    int maxTry = 10;
+                    while(maxTry > 0)
                     {
-                        if(otherShip != ship)
+                        int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
+                        int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
+                        boolean goodPos = objEnemyOccupancy.isFree(posX, posY, offsetX, offsetY); // no overlap with other ships
+                        if(goodPos)
                         {
-                            if(Math.abs(ship.xPos + desiredDir - otherShip.xPos) < (otherShip.offsetX + ship.offsetX + 1) &&
-                               Math.abs(ship.yPos - otherShip.yPos) < (otherShip.offsetY + ship.offsetY + 1))
-                            {
-                                // overlap detected
-                                validDir = false;
-                                break;
-                            }
-                            if(Math.abs(ship.xPos - desiredDir - otherShip.xPos) < (otherShip.offsetX + ship.offsetX + 1) &&
-                               Math.abs(ship.yPos - otherShip.yPos) < (otherShip.offsetY + ship.offsetY + 1))
-                                validOppositeDir = false; // not valid to move opposite way
+                            addEnemy(GameObject.EnemyType.C, posX, posY);
+                            break;
                         }
+                        maxTry--;
                     }
-                    if(validDir)
-                        finalChoice = (desiredDir < 0) ? GameObject.MoveDirection.DIR_LEFT : GameObject.MoveDirection.DIR_RIGHT;
-                    else if(validOppositeDir)
+                }
+                else if(enemyType < 400)
+                {
+                    // set offsets of Ship B
+                    int offsetX = 2; int offsetY = 1;
+                    int maxTry = 10;
+                    while(maxTry > 0)
                     {
-                        // only 1/5 possibility to stay still
-                        if(enemyRand.nextInt(5) > 0)
-                            finalChoice = (desiredDir > 0) ? GameObject.MoveDirection.DIR_LEFT : GameObject.MoveDirection.DIR_RIGHT;
+                        int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
+                        int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
+                        boolean goodPos = objEnemyOccupancy.isFree(posX, posY, offsetX, offsetY); // no overlap with other ships
+                        if(goodPos)
+                        {
+                            addEnemy(GameObject.EnemyType.B, posX, posY);
+                            break;
+                        }
+                        maxTry--;
                     }
                 }
                 else
                 {
-                    // move vertically
-                    int desiredDir = (enemyRand.nextInt(2) > 0) ? 1 : -1; // 50% possibility
-                    // check validity
-                    boolean validDir = true;
-                    boolean validOppositeDir = true;
-                    for(GameObject.SpaceShip otherShip : objEnemies)
+                    // set offsets of Ship A
+                    int offsetX = 1; int offsetY = 0;
+                    int maxTry = 10;
+                    while(maxTry > 0)
                     {
-                        if(otherShip != ship)
+                        int posX = enemyRand.nextInt((maxPosX-8)+1) + 4; // [4, maxPosX - 4]
+                        int posY = enemyRand.nextInt((maxPosY/2-1)+1) + 1; // [1, maxPosY / 2]
+                        boolean goodPos = objEnemyOccupancy.isFree(posX, posY, offsetX, offsetY); // no overlap with other ships
+                        if(goodPos)
                         {
-                            if(Math.abs(ship.yPos + desiredDir - otherShip.yPos) < (otherShip.offsetY + ship.offsetY + 1) &&
-                               Math.abs(ship.xPos - otherShip.xPos) < (otherShip.offsetX + ship.offsetX + 1))
-                            {
-                                // overlap detected
-                                validDir = false;
-                                break;
-                            }
-                            if(Math.abs(ship.yPos - desiredDir - otherShip.yPos) < (otherShip.offsetY + ship.offsetY + 1) &&
-                               Math.abs(ship.xPos - otherShip.xPos) < (otherShip.offsetX + ship.offsetX + 1))
-                                validOppositeDir = false; // not valid to move opposite way
+                            addEnemy(GameObject.EnemyType.A, posX, posY);
+                            break;
                         }
-                    }
-                    if(validDir)
-                        finalChoice = (desiredDir < 0) ? GameObject.MoveDirection.DIR_UP : GameObject.MoveDirection.DIR_DOWN;
-                    else if(validOppositeDir)
-                    {
-                        // only 1/5 possibility to stay unmoved
-                        if(enemyRand.nextInt(5) > 1)
-                            finalChoice = (desiredDir > 0) ? GameObject.MoveDirection.DIR_UP : GameObject.MoveDirection.DIR_DOWN;
+                        maxTry--;
                     }
                 }
             }
-            commands.addAll(ship.update(finalChoice));
-            // randomly trigger shoot
-            if(enemyRand.nextInt(10) > 2)
-                objBullets.addAll(ship.shoot());
         }
-        // process bullets
-        ListIterator<GameObject.Bullet> bulletIter = objBullets.listIterator();
-        while(bulletIter.hasNext())
+    }
+
+    /**
+     * Move bullets out of the screen away and process bullet hits
+     */
+    void processBullets()
+    {
+        // enemies are looked up in the spatial grid
+        objEnemyGrid.rebuild(objEnemies);
+        int i = 0;
+        while(i < objBullets.size())
         {
-            GameObject.Bullet bullet = bulletIter.next();
+            int bulletX = objBullets.getX(i);
+            int bulletY = objBullets.getY(i);
             // check if bullet is outside of screen
-            if(bullet.yPos < 0 || bullet.yPos > maxPosY)
+            if(bulletY < 0 || bulletY > maxPosY)
             {
-                commands.add(bullet.explode());
-                bulletIter.remove();
+                objBullets.explode(i, commands); // the last bullet moves into slot i
                 continue;
             }
             // process by type
             boolean hit = false;
-            if(bullet.isEnemy())
+            if(objBullets.isEnemy(i))
             {
-                if(Math.abs(bullet.xPos - objMyShip.xPos) <= (objMyShip.offsetX) && Math.abs(bullet.yPos - objMyShip.yPos) <= (objMyShip.offsetY))
+                if(Math.abs(bulletX - objMyShip.xPos) <= (objMyShip.offsetX) && Math.abs(bulletY - objMyShip.yPos) <= (objMyShip.offsetY))
                 {
-                    commands.addAll(objMyShip.hit());
+                    objMyShip.hit(commands);
                     hit = true;
                 }
             }
             else
             {
-                for(GameObject.SpaceShip ship : objEnemies)
+                int ship = objEnemyGrid.find(bulletX, bulletY);
+                if(ship >= 0)
                 {
-                    if(Math.abs(bullet.xPos - ship.xPos) <= (ship.offsetX) && Math.abs(bullet.yPos - ship.yPos) <= (ship.offsetY))
-                    {
-                        commands.addAll(ship.hit());
-                        hit = true;
-                        break;
-                    }
+                    objEnemies.hit(ship, commands);
+                    hit = true;
                 }
             }
             if(hit)
-            {
-                commands.add(bullet.explode());
-                bulletIter.remove();
-            }
+                objBullets.explode(i, commands);
+            else
+                i++;
         }
-        // if my ship is not alive, set it to null
-        if(!objMyShip.isAlive())
+    }
+
+    /**
+     * Add a new enemy to the game
+     * @param type
+     * @param x center position
+     * @param y center position
+     * @return handle of the enemy
+     */
+    private long addEnemy(GameObject.EnemyType type, int x, int y)
+    {
+        long handle = objEnemies.add(type, x, y);
+        objEnemyOccupancy.add(objEnemies, objEnemies.size() - 1);
+        return handle;
+    }
+
+    // the methods below let Benchmark set up scenarios
+
+    /**
+     * Draw into the given display, also when running headless
+     * @param display
+     */
+    void attachDisplay(Display display){myDisplay = display;}
+
+    /**
+     * Set how many enemies a new round spawns
+     * @param min
+     * @param max
+     */
+    void setEnemiesSpawned(int min, int max)
+    {
+        minEnemiesSpawned = min;
+        maxEnemiesSpawned = max;
+    }
+
+    /**
+     * Add an enemy if it does not overlap any other
+     * @param type
+     * @param x center position
+     * @param y center position
+     * @return whether the enemy was added
+     */
+    boolean placeEnemy(GameObject.EnemyType type, int x, int y)
+    {
+        if(!objEnemyOccupancy.isFree(x, y, type.sprite.offsetX, type.sprite.offsetY))
+            return false;
+        addEnemy(type, x, y);
+        return true;
+    }
+
+    /**
+     * Remove all enemies and bullets
+     */
+    void clearEntities()
+    {
+        for(int i = 0; i < objEnemies.size(); i++)
+            objEnemyOccupancy.remove(objEnemies, i);
+        objEnemies.clear();
+        objBullets.clear();
+    }
+
+    /**
+     * Drop the commands drawn since the last tick, which are otherwise kept until the tick submits them
+     */
+    void discardCommands(){commands.reset();}
+
+    GameObject.BulletPool getBullets(){return objBullets;}
+    GameObject.MyShip getMyShip(){return objMyShip;}
+    int getEnemyCount(){return objEnemies.size();}
+
+    /**
+     * A checksum of the game state, equal for two runs only if they played out the same
+     * @return checksum
+     */
+    public long checksum()
+    {
+        long h = seed;
+        h = 31 * h + objGameTime.getTicks();
+        h = 31 * h + score;
+        h = 31 * h + scoreRound;
+        h = 31 * h + objMyShip.xPos;
+        h = 31 * h + objMyShip.yPos;
+        h = 31 * h + objMyShip.d_HP;
+        for(int i = 0; i < objEnemies.size(); i++)
         {
-            commands.addAll(objMyShip.explode());
-            gameExit = true;
+            h = 31 * h + objEnemies.getX(i);
+            h = 31 * h + objEnemies.getY(i);
+            h = 31 * h + objEnemies.getHP(i);
         }
-        myPanel.addCommand(commands);
+        for(int i = 0; i < objBullets.size(); i++)
+        {
+            h = 31 * h + objBullets.getX(i);
+            h = 31 * h + objBullets.getY(i);
+        }
+        h = 31 * h + Double.hashCode(objRecovery.yPos);
+        h = 31 * h + (objRecovery.exist() ? 1 : 0);
+        return h;
     }
 
     /**
-     * Send close window event
+     * Send close window event, and finish the recording
      * @return String, final summary
      */
     public String close()
     {
-        myFrame.dispatchEvent(new WindowEvent(myFrame, WindowEvent.WINDOW_CLOSING));
+        if(recorder != null)
+            recorder.finish(objGameTime.getTicks(), checksum());
+        if(myFrame != null)
+            myFrame.dispatchEvent(new WindowEvent(myFrame, WindowEvent.WINDOW_CLOSING));
+        if(myDisplay != null)
+            myDisplay.dispose();
         String summary = "Your final score = " + score;
         summary += "\nYou have played for " + scoreRound + " rounds";
+        if(!headless)
+            summary += String.format("\nRendered %d frames (%d late, %d dropped) for %d ticks",
+                objClock.getFrames(), objClock.getLateFrames(), objClock.getDroppedFrames(), objClock.getTicks());
+        else
+            summary += String.format("\nSimulated %d ticks at %.1f ticks per second", headlessTicks, headlessTicksPerSecond());
+        if(frameTrace != null)
+            summary += "\n" + frameTrace.finish();
+        if(spectators != null)
+            summary += "\n" + spectators.close();
+        String statistics = (myDisplay != null) ? myDisplay.statistics() : null;
+        if(statistics != null)
+            summary += "\n" + statistics;
+        String inputStatistics = input.statistics();
+        if(inputStatistics != null)
+            summary += "\n" + inputStatistics;
         return summary;
     }
 
@@ -423,26 +947,29 @@ public class Renderer implements KeyListener
                 break;
             case KeyEvent.VK_UP:
             case KeyEvent.VK_W:
-                control[0] = true;
+                input.offer(0, true);
                 break;
             case KeyEvent.VK_DOWN:
             case KeyEvent.VK_S:
-                control[1] = true;
+                input.offer(1, true);
                 break;
             case KeyEvent.VK_LEFT:
             case KeyEvent.VK_A:
-                control[2] = true;
+                input.offer(2, true);
                 break;
             case KeyEvent.VK_RIGHT:
             case KeyEvent.VK_D:
-                control[3] = true;
+                input.offer(3, true);
                 break;
             case KeyEvent.VK_SPACE:
-                control[4] = true;
+                input.offer(4, true);
                 break;
             case KeyEvent.VK_ENTER:
                 gameStart = true;
                 break;
+            case KeyEvent.VK_F3:
+                showOverlay = !showOverlay;
+                break;
             default: break;
         }
     }
@@ -456,22 +983,22 @@ public class Renderer implements KeyListener
                 break;
             case KeyEvent.VK_UP:
             case KeyEvent.VK_W:
-                control[0] = false;
+                input.offer(0, false);
                 break;
             case KeyEvent.VK_DOWN:
             case KeyEvent.VK_S:
-                control[1] = false;
+                input.offer(1, false);
                 break;
             case KeyEvent.VK_LEFT:
             case KeyEvent.VK_A:
-                control[2] = false;
+                input.offer(2, false);
                 break;
             case KeyEvent.VK_RIGHT:
             case KeyEvent.VK_D:
-                control[3] = false;
+                input.offer(3, false);
                 break;
             case KeyEvent.VK_SPACE:
-                control[4] = false;
+                input.offer(4, false);
                 break;
             default: break;
         }
@@ -480,73 +1007,516 @@ public class Renderer implements KeyListener
     public void keyTyped(KeyEvent e) {}
 
     /**
-     * This class handles the real text rendering, by the render commands received.
-     * @see javax.swing.JPanel
+     * How the frames of the game are shown
      */
-    public class MyPanel extends JPanel
+    public static enum DisplayMode
+    {
+        PANEL, // a Swing panel, repainted by the EDT
+        ACTIVE, // a canvas painted by the game thread through a BufferStrategy
+        TERMINAL, // ANSI text in the terminal, no window
+        HEADLESS // no window
+    }
+
+    /**
+     * Provides the control state of each logic tick, instead of the keyboard
+     */
+    public interface ControlSource
+    {
+        /**
+         * Give the control state of the next tick
+         * @param control receives the state, UP DOWN LEFT RIGHT SHOOT
+         * @return false if there is no more input
+         */
+        boolean next(boolean[] control);
+    }
+
+    /**
+     * Where the frames of the game go.
+     * The game thread draws commands into the display's cells, and presents them once per frame
+     */
+    public interface Display
+    {
+        /**
+         * The screen content built by the commands, only touched by the game thread
+         * @return CellBuffer
+         */
+        CellBuffer getCells();
+
+        /**
+         * Show the commands added so far as a finished frame
+         * @param background drawn behind the commands, may be null
+         */
+        void present(GameObject.Background background);
+
+        /**
+         * Lines drawn on top of the next frames, top right
+         * @param overlay null for no overlay
+         */
+        void setOverlay(String[] overlay);
+
+        /**
+         * Release the display at the end of the game
+         */
+        default void dispose(){}
+
+        /**
+         * Statistics of the display for the final summary
+         * @return String, or null for none
+         */
+        default String statistics(){return null;}
+
+        /**
+         * Add a single command
+         * @param posX
+         * @param posY
+         * @param data
+         */
+        default void addCommand(int posX, int posY, String data)
+        {
+            getCells().draw(posX, posY, data, Color.WHITE);
+        }
+        /**
+         * Add a single command
+         * @param cmd
+         */
+        default void addCommand(RenderCommand cmd)
+        {
+            getCells().draw(cmd);
+        }
+        /**
+         * Add all commands of a command buffer
+         * @param cmds
+         */
+        default void addCommand(CommandBuffer cmds)
+        {
+            CellBuffer cells = getCells();
+            for(int i = 0; i < cmds.size(); i++)
+                cells.draw(cmds.get(i));
+        }
+    }
+
+    /**
+     * A display that only keeps the cells, for running without a window
+     */
+    public static class CellDisplay implements Display
+    {
+        private final CellBuffer cells;
+
+        public CellDisplay(int width, int height){cells = new CellBuffer(width, height);}
+
+        @Override
+        public CellBuffer getCells(){return cells;}
+        @Override
+        public void present(GameObject.Background background){}
+        @Override
+        public void setOverlay(String[] overlay){}
+    }
+
+    /**
+     * Paints frames of cells with the game font, only the cells that changed since the last paint
+     */
+    public static class CellPainter
     {
-        static final long serialVersionUID = 1234L;
         static final int fontSize = 12;
 
-        private ArrayList<RenderCommand> commands;
-        private Font myFont = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
-        public int chrHeight = 0;
-        public int chrWidth = 0;
-        private int chrDescent = 0;
+        private final Font myFont = new Font(Font.MONOSPACED, Font.PLAIN, fontSize);
+        // what was painted last
+        private CellBuffer shown;
+        // rasterized glyphs, created at the first paint
+        private GlyphAtlas atlas = null;
+        public final int chrHeight;
+        public final int chrWidth;
+        private final int chrDescent;
 
-        public MyPanel()
+        /**
+         * @param component used to measure the font
+         * @param width in pixels
+         * @param height in pixels
+         */
+        public CellPainter(Component component, int width, int height)
         {
-            commands = new ArrayList<>();
-            // set font properties
-            FontMetrics metrics = getFontMetrics(myFont);
+            FontMetrics metrics = component.getFontMetrics(myFont);
             chrHeight = metrics.getHeight();
             chrWidth = metrics.charWidth(' ');
             chrDescent = metrics.getMaxDescent();
+            shown = new CellBuffer(width / chrWidth, height / chrHeight);
         }
+
+        /**
+         * A cell buffer as large as the window
+         * @return CellBuffer
+         */
+        public CellBuffer createCells(){return new CellBuffer(shown.width, shown.height);}
+
+        /**
+         * Paint the cells of a frame that differ from what was painted last, by copying glyphs from the atlas
+         * @param g
+         * @param frame
+         * @param full paint every cell, not only the changed ones
+         */
+        public void paint(Graphics g, CellBuffer frame, boolean full)
+        {
+            if(atlas == null)
+                atlas = new GlyphAtlas(((Graphics2D)g).getDeviceConfiguration(), myFont, chrWidth, chrHeight, chrDescent);
+            char[] chars = frame.chars;
+            byte[] colors = frame.colors;
+            for(int y = 0; y < frame.height; y++)
+            {
+                int rowStart = y * frame.width;
+                for(int x = 0; x < frame.width; x++)
+                {
+                    int i = rowStart + x;
+                    if(!full && chars[i] == shown.chars[i] && colors[i] == shown.colors[i])
+                        continue;
+                    atlas.draw(g, chars[i], colors[i], x*chrWidth, y*chrHeight + chrDescent);
+                    shown.chars[i] = chars[i];
+                    shown.colors[i] = colors[i];
+                }
+            }
+        }
+
+        /**
+         * Paint the last painted frame again
+         * @param g
+         */
+        public void repaint(Graphics g){paint(g, shown, true);}
+    }
+
+    /**
+     * This class handles the real text rendering, by the render commands received.
+     * Commands are drawn into a cell buffer, and only the cells that changed since the last painted frame are painted.
+     * Frames are painted passively, when Swing repaints the panel on the EDT
+     * @see javax.swing.JPanel
+     */
+    public class MyPanel extends JPanel implements Display
+    {
+        static final long serialVersionUID = 1234L;
+
+        // the screen content built by the commands, only touched by the game thread
+        private CellBuffer cells;
+        // a snapshot buffer the game thread copies the next frame into
+        private CellBuffer spare;
+        private String[] overlay = null; // drawn on top of the frames, game thread only
+        // the latest finished frame, handed from the game thread to the EDT
+        private final AtomicReference<CellBuffer> published = new AtomicReference<>();
+        // a painted snapshot, handed back from the EDT for reuse
+        private final AtomicReference<CellBuffer> recycled = new AtomicReference<>();
+        // only touched by the EDT
+        private final CellPainter painter;
+        private boolean painted = false;
+
+        public MyPanel()
+        {
+            painter = new CellPainter(this, frameWidth, frameHeight);
+            cells = painter.createCells();
+            spare = painter.createCells();
+            setPreferredSize(new Dimension(frameWidth, frameHeight));
+        }
+
+        @Override
+        public CellBuffer getCells(){return cells;}
         
         @Override
         public void paintComponent(Graphics g)
         {
-            g.setFont(myFont);
-            for(RenderCommand command : commands)
+            long t = profiler.begin(FrameProfiler.Phase.PAINT);
+            // take ownership of the latest frame, the game thread never touches it again
+            CellBuffer frame = published.getAndSet(null);
+            if(frame == null)
+            {
+                // no new frame, the window needs the current content again
+                painter.repaint(g);
+            }
+            else
+            {
+                // the first frame paints every cell, the panel starts without content
+                painter.paint(g, frame, !painted);
+                painted = true;
+                // hand the snapshot back
+                recycled.set(frame);
+            }
+            profiler.end(FrameProfiler.Phase.PAINT, t);
+        }
+
+        /**
+         * Publish the commands added so far as a finished frame, and schedule a repaint.
+         * Called by the game thread, never blocks on the EDT
+         * @param background drawn behind the commands, may be null
+         */
+        @Override
+        public void present(GameObject.Background background)
+        {
+            cells.copyTo(spare);
+            if(background != null)
+                background.drawLayer(spare);
+            // the overlay is only drawn into the snapshot, the game content below stays intact
+            spare.drawTopRight(overlay, Color.GREEN);
+            // an unpainted frame is simply replaced, every frame holds the whole screen
+            CellBuffer next = published.getAndSet(spare);
+            if(next == null)
+                next = recycled.getAndSet(null);
+            if(next == null)
+                next = new CellBuffer(cells.width, cells.height);
+            spare = next;
+            repaint();
+        }
+
+        @Override
+        public void setOverlay(String[] overlay){this.overlay = overlay;}
+    }
+
+    /**
+     * Renders actively: the game thread paints every frame itself and flips it onto the screen
+     * through a BufferStrategy, so a frame is shown exactly when the game loop presents it.
+     * Changed cells are painted into an off-screen image, which is copied to the back buffer as a whole,
+     * since the content of a back buffer is lost at every flip
+     */
+    public class ActiveCanvas extends Canvas implements Display
+    {
+        static final long serialVersionUID = 1234L;
+
+        private final CellBuffer cells;
+        private final CellBuffer frame;
+        private String[] overlay = null;
+        private final CellPainter painter;
+        private BufferStrategy strategy = null;
+        private VolatileImage image = null;
+
+        public ActiveCanvas()
+        {
+            painter = new CellPainter(this, frameWidth, frameHeight);
+            cells = painter.createCells();
+            frame = painter.createCells();
+            setPreferredSize(new Dimension(frameWidth, frameHeight));
+            setBackground(Color.BLACK);
+            setIgnoreRepaint(true); // the game thread paints, not the EDT
+            setFocusable(false); // key events go to the frame
+        }
+
+        @Override
+        public CellBuffer getCells(){return cells;}
+
+        @Override
+        public void setOverlay(String[] overlay){this.overlay = overlay;}
+
+        /**
+         * Paint the commands added so far and show them now. Called by the game thread
+         * @param background drawn behind the commands, may be null
+         */
+        @Override
+        public void present(GameObject.Background background)
+        {
+            cells.copyTo(frame);
+            if(background != null)
+                background.drawLayer(frame);
+            frame.drawTopRight(overlay, Color.GREEN);
+            if(!isDisplayable())
+                return; // the window is closed
+            long t = profiler.begin(FrameProfiler.Phase.PAINT);
+            if(strategy == null)
+            {
+                createBufferStrategy(2);
+                strategy = getBufferStrategy();
+            }
+            do
+            {
+                // a new or lost off-screen image is painted again from scratch
+                GraphicsConfiguration config = getGraphicsConfiguration();
+                int status = (image != null) ? image.validate(config) : VolatileImage.IMAGE_INCOMPATIBLE;
+                if(status == VolatileImage.IMAGE_INCOMPATIBLE)
+                    image = config.createCompatibleVolatileImage(frameWidth, frameHeight);
+                boolean full = (status != VolatileImage.IMAGE_OK);
+                Graphics2D g = image.createGraphics();
+                painter.paint(g, frame, full);
+                g.dispose();
+            }while(image.contentsLost());
+            do
             {
-                // fill background with black
+                do
+                {
+                    Graphics g = strategy.getDrawGraphics();
+                    g.drawImage(image, 0, 0, null);
+                    g.dispose();
+                }while(strategy.contentsRestored());
+                strategy.show();
+            }while(strategy.contentsLost());
+            // flush the window system's queue, so that the frame is on screen now
+            Toolkit.getDefaultToolkit().sync();
+            profiler.end(FrameProfiler.Phase.PAINT, t);
+        }
+    }
+
+    /**
+     * Caches every (character, color) pair as a rasterized cell image,
+     * so that a cell is painted by copying its image instead of laying out text.
+     * Glyphs are rasterized the first time they are used
+     */
+    public static class GlyphAtlas
+    {
+        private static final char firstChar = ' ';
+        private static final char lastChar = '~';
+        private final BufferedImage image;
+        private final Graphics2D imageGraphics;
+        private final boolean[] ready;
+        private final Font font;
+        private final int chrWidth, chrHeight, chrDescent;
+        private final int glyphCount = lastChar - firstChar + 1;
+
+        /**
+         * @param config the graphics configuration to create a compatible image for
+         * @param font
+         * @param chrWidth width of a cell
+         * @param chrHeight height of a cell
+         * @param chrDescent descent of the font
+         */
+        public GlyphAtlas(GraphicsConfiguration config, Font font, int chrWidth, int chrHeight, int chrDescent)
+        {
+            this.font = font;
+            this.chrWidth = chrWidth;
+            this.chrHeight = chrHeight;
+            this.chrDescent = chrDescent;
+            // one row of glyphs per palette color
+            image = config.createCompatibleImage(glyphCount * chrWidth, CellBuffer.palette.length * chrHeight);
+            imageGraphics = image.createGraphics();
+            imageGraphics.setFont(font);
+            ready = new boolean[glyphCount * CellBuffer.palette.length];
+        }
+
+        /**
+         * Draw a cell
+         * @param g
+         * @param c character of the cell
+         * @param color palette index of the cell
+         * @param x left of the cell
+         * @param y top of the cell
+         */
+        public void draw(Graphics g, char c, byte color, int x, int y)
+        {
+            if(c < firstChar || c > lastChar)
+            {
+                // not in the atlas, fall back to text drawing, inside of the cell only
+                Shape clip = g.getClip();
+                g.clipRect(x, y, chrWidth, chrHeight);
                 g.setColor(Color.BLACK);
-                g.fillRect(command.getX()*chrWidth, command.getY()*chrHeight + chrDescent, command.getData().length()*chrWidth, chrHeight);
-                // draw actual data
-                g.setColor(command.getColor());
-                g.drawString(command.getData(), command.getX()*chrWidth, (command.getY()+1)*chrHeight);
+                g.fillRect(x, y, chrWidth, chrHeight);
+                g.setFont(font);
+                g.setColor(CellBuffer.palette[color]);
+                g.drawString(String.valueOf(c), x, y + chrHeight - chrDescent);
+                g.setClip(clip);
+                return;
             }
-            // clear drawing commands
-            commands.clear();
-            this.revalidate();
+            int glyph = c - firstChar;
+            int slot = color * glyphCount + glyph;
+            int sx = glyph * chrWidth;
+            int sy = color * chrHeight;
+            if(!ready[slot])
+            {
+                // rasterize the glyph on black background, a wide glyph must not reach into its neighbours
+                imageGraphics.setClip(sx, sy, chrWidth, chrHeight);
+                imageGraphics.setColor(Color.BLACK);
+                imageGraphics.fillRect(sx, sy, chrWidth, chrHeight);
+                imageGraphics.setColor(CellBuffer.palette[color]);
+                imageGraphics.drawString(String.valueOf(c), sx, sy + chrHeight - chrDescent);
+                ready[slot] = true;
+            }
+            g.drawImage(image, x, y, x + chrWidth, y + chrHeight, sx, sy, sx + chrWidth, sy + chrHeight, null);
         }
+    }
 
+    /**
+     * A screen of character cells, each cell holds a character and a palette index for its color
+     */
+    public static class CellBuffer
+    {
         /**
-         * Add a single command
+         * Colors a cell can have, colors not in the palette are drawn white
+         */
+        public static final Color[] palette = {Color.WHITE, Color.RED, Color.GREEN, Color.YELLOW, Color.CYAN};
+        public final int width;
+        public final int height;
+        public final char[] chars;
+        public final byte[] colors;
+
+        public CellBuffer(int width, int height)
+        {
+            this.width = width;
+            this.height = height;
+            chars = new char[width * height];
+            colors = new byte[width * height];
+            clear();
+        }
+
+        /**
+         * Find the palette index of a color
+         * @param color
+         * @return palette index, 0 if the color is not in the palette
+         */
+        public static byte paletteIndex(Color color)
+        {
+            for(int i = 0; i < palette.length; i++)
+                if(palette[i].equals(color)) return (byte)i;
+            return 0;
+        }
+
+        /**
+         * Fill the buffer with blank cells
+         */
+        public void clear()
+        {
+            Arrays.fill(chars, ' ');
+            Arrays.fill(colors, (byte)0);
+        }
+
+        /**
+         * Draw a render command, the part outside of the buffer is cut off
+         * @param cmd
+         */
+        public void draw(RenderCommand cmd)
+        {
+            draw(cmd.getX(), cmd.getY(), cmd.getData(), cmd.getColor());
+        }
+
+        /**
+         * Draw a string, the part outside of the buffer is cut off
          * @param posX
          * @param posY
          * @param data
+         * @param color
          */
-        public void addCommand(int posX, int posY, String data)
+        public void draw(int posX, int posY, String data, Color color)
         {
-            commands.add(new RenderCommand(posX, posY, data));
+            if(posY < 0 || posY >= height) return;
+            byte colorIndex = paletteIndex(color);
+            int start = Math.max(0, -posX);
+            int end = Math.min(data.length(), width - posX);
+            int row = posY * width + posX;
+            for(int k = start; k < end; k++)
+            {
+                chars[row + k] = data.charAt(k);
+                colors[row + k] = colorIndex;
+            }
         }
+
         /**
-         * Add a single command
-         * @param cmd
+         * Copy the content into another buffer of the same size
+         * @param other
          */
-        public void addCommand(RenderCommand cmd)
+        public void copyTo(CellBuffer other)
         {
-            commands.add(cmd);
+            System.arraycopy(chars, 0, other.chars, 0, chars.length);
+            System.arraycopy(colors, 0, other.colors, 0, colors.length);
         }
+
         /**
-         * Add a list of commands
-         * @param cmds
+         * Draw lines aligned to the top right corner
+         * @param lines may be null
+         * @param color
          */
-        public void addCommand(ArrayList<RenderCommand> cmds)
+        public void drawTopRight(String[] lines, Color color)
         {
-            commands.addAll(cmds);
+            if(lines == null) return;
+            for(int i = 0; i < lines.length; i++)
+                draw(width - lines[i].length() - 1, i, lines[i], color);
         }
     }
 
@@ -585,5 +1555,83 @@ public class Renderer implements KeyListener
         public void setX(int m){this.posX = m;}
         public void setY(int m){this.posY = m;}
         public void setData(String data){this.data = data;}
+        public void set(int posX, int posY, String data, Color color)
+        {
+            this.posX = posX;
+            this.posY = posY;
+            this.data = data;
+            this.color = color;
+        }
+    }
+
+    /**
+     * A growing arena of render commands, reused after reset so that no command is allocated per frame.
+     * Commands are given in arena positions, and stored in screen positions relative to the view.
+     * Commands entirely outside of the view are dropped
+     */
+    public static class CommandBuffer
+    {
+        private RenderCommand[] pool = new RenderCommand[0];
+        private int size = 0;
+        // the view, unbounded unless set
+        private int viewX = 0, viewY = 0;
+        private int viewWidth = Integer.MAX_VALUE, viewHeight = Integer.MAX_VALUE;
+
+        /**
+         * Set the part of the arena the commands are for
+         * @param x arena position of the top left cell of the screen
+         * @param y arena position of the top left cell of the screen
+         * @param width
+         * @param height
+         */
+        public void setView(int x, int y, int width, int height)
+        {
+            viewX = x;
+            viewY = y;
+            viewWidth = width;
+            viewHeight = height;
+        }
+
+        /**
+         * Add a white command
+         * @param posX
+         * @param posY
+         * @param data
+         */
+        public void add(int posX, int posY, String data)
+        {
+            add(posX, posY, data, Color.WHITE);
+        }
+
+        /**
+         * Add a command
+         * @param posX
+         * @param posY
+         * @param data
+         * @param color
+         */
+        public void add(int posX, int posY, String data, Color color)
+        {
+            posX -= viewX;
+            posY -= viewY;
+            if(posY < 0 || posY >= viewHeight || posX >= viewWidth || posX + data.length() <= 0)
+                return; // not on screen
+            if(size == pool.length)
+            {
+                // grow the arena, the old commands are kept
+                pool = Arrays.copyOf(pool, Math.max(64, pool.length * 2));
+                for(int i = size; i < pool.length; i++)
+                    pool[i] = new RenderCommand();
+            }
+            pool[size++].set(posX, posY, data, color);
+        }
+
+        public int size(){return size;}
+        public RenderCommand get(int i){return pool[i];}
+
+        /**
+         * Forget all commands, they are overwritten by the next ones
+         */
+        public void reset(){size = 0;}
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,246 @@
+// This file records the input of a game, and plays it back
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.BufferedInputStream;
+
+/**
+ * Records the control state of every logic tick into a compact binary file, and plays it back.
+ * Together with the seed stored in the file, a replay reproduces the recorded game exactly.
+ * <p>
+ * File layout: magic, version, seed, level, tick rate, world size, swarm size, then runs of
+ * (control bits, number of ticks as varint), and finally an end marker with the tick count and state checksum.
+ * Only recordings of the current version load: the enemies of versions 1 and 2 drew from one shared random stream,
+ * so their games cannot be played out the same any more
+ */
+public class Replay
+{
+    private static final int magic = 0x4A534952; // "JSIR"
+    private static final int version = 3; // enemies decide with their own random streams since version 3
+    private static final int endMarker = 0x80; // never a valid control state
+
+    /**
+     * Pack the control state into bits
+     * @param control
+     * @return one bit per control
+     */
+    private static int pack(boolean[] control)
+    {
+        int bits = 0;
+        for(int i = 0; i < control.length; i++)
+            if(control[i]) bits |= 1 << i;
+        return bits;
+    }
+
+    /**
+     * Writes the control state of each tick, runs of equal states are stored once
+     */
+    public static class Recorder
+    {
+        private DataOutputStream out;
+        private int runState = -1;
+        private int runLength = 0;
+
+        /**
+         * Create the file and write the header
+         * @param path
+         * @param seed
+         * @param level
+         * @param tickRate
+         * @param maxPosX
+         * @param maxPosY
+         * @param swarmSize
+         * @throws IOException
+         */
+        public Recorder(String path, long seed, int level, int tickRate, int maxPosX, int maxPosY, int swarmSize) throws IOException
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+            out.writeInt(magic);
+            out.writeByte(version);
+            out.writeLong(seed);
+            out.writeInt(level);
+            out.writeInt(tickRate);
+            out.writeInt(maxPosX);
+            out.writeInt(maxPosY);
+            out.writeInt(swarmSize);
+        }
+
+        /**
+         * Record the control state of one tick
+         * @param control
+         */
+        public void record(boolean[] control)
+        {
+            if(out == null) return;
+            int state = pack(control);
+            if(state != runState && runLength > 0)
+                writeRun();
+            runState = state;
+            runLength++;
+        }
+
+        /**
+         * Write the end marker and close the file
+         * @param ticks number of ticks of the game
+         * @param checksum state of the game at the end
+         */
+        public void finish(long ticks, long checksum)
+        {
+            if(out == null) return;
+            try
+            {
+                if(runLength > 0)
+                    writeRun();
+                out.writeByte(endMarker);
+                out.writeLong(ticks);
+                out.writeLong(checksum);
+                out.close();
+            }catch(IOException e)
+            {
+                System.out.println("Failed to write the recording: " + e.getMessage());
+            }
+            out = null;
+        }
+
+        private void writeRun()
+        {
+            try
+            {
+                out.writeByte(runState);
+                // length as varint, 7 bits per byte
+                int length = runLength;
+                while(length >= 0x80)
+                {
+                    out.writeByte((length & 0x7F) | 0x80);
+                    length >>>= 7;
+                }
+                out.writeByte(length);
+            }catch(IOException e)
+            {
+                System.out.println("Failed to write the recording, recording stopped: " + e.getMessage());
+                out = null;
+            }
+            runLength = 0;
+        }
+    }
+
+    /**
+     * Plays back a recording as the control input of a game
+     * @see Renderer.ControlSource
+     */
+    public static class Player implements Renderer.ControlSource
+    {
+        private final DataInputStream in;
+        private final long seed;
+        private final int level, tickRate, maxPosX, maxPosY, swarmSize;
+        private int runState = 0;
+        private int runLength = 0;
+        private boolean ended = false;
+        private long ticks = -1;
+        private long checksum = 0;
+
+        /**
+         * Open a recording and read its header
+         * @param path
+         * @throws IOException if the file cannot be read or is not a recording
+         */
+        public Player(String path) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+            int fileVersion = (in.readInt() == magic) ? in.readByte() : -1;
+            if(fileVersion < 1 || fileVersion > version)
+            {
+                in.close();
+                throw new IOException(path + " is not a JSpaceInvader recording");
+            }
+            if(fileVersion < version)
+            {
+                // the enemies of older versions played differently, the game would not be the same
+                in.close();
+                throw new IOException(path + " was recorded by an older version of the game (replay format " + fileVersion
+                    + ", this game replays format " + version + " only)");
+            }
+            seed = in.readLong();
+            level = in.readInt();
+            tickRate = in.readInt();
+            maxPosX = in.readInt();
+            maxPosY = in.readInt();
+            swarmSize = in.readInt();
+        }
+
+        public long getSeed(){return seed;}
+        public int getLevel(){return level;}
+        public int getTickRate(){return tickRate;}
+        public int getMaxPosX(){return maxPosX;}
+        public int getMaxPosY(){return maxPosY;}
+        public int getSwarmSize(){return swarmSize;}
+
+        @Override
+        public boolean next(boolean[] control)
+        {
+            if(runLength == 0 && !readRun())
+                return false;
+            for(int i = 0; i < control.length; i++)
+                control[i] = (runState & (1 << i)) != 0;
+            runLength--;
+            return true;
+        }
+
+        /**
+         * Compare the end of a replayed game with the recording
+         * @param ticks number of ticks of the replayed game
+         * @param checksum state of the replayed game at the end
+         * @return whether both match the recorded ones
+         */
+        public boolean matches(long ticks, long checksum)
+        {
+            while(!ended && readRun())
+                runLength = 0; // skip input left over, the replayed game ended early
+            return ticks == this.ticks && checksum == this.checksum;
+        }
+
+        private boolean readRun()
+        {
+            if(ended) return false;
+            try
+            {
+                int state = in.readUnsignedByte();
+                if(state == endMarker)
+                {
+                    ticks = in.readLong();
+                    checksum = in.readLong();
+                    ended = true;
+                    in.close();
+                    return false;
+                }
+                int length = 0;
+                int shift = 0;
+                int b;
+                do
+                {
+                    b = in.readUnsignedByte();
+                    length |= (b & 0x7F) << shift;
+                    shift += 7;
+                }while((b & 0x80) != 0);
+                runState = state;
+                runLength = length;
+                return true;
+            }catch(EOFException e)
+            {
+                // recording without end marker, e.g. the game was killed
+                ended = true;
+                return false;
+            }catch(IOException e)
+            {
+                System.out.println("Failed to read the recording: " + e.getMessage());
+                ended = true;
+                return false;
+            }
+        }
+    }
+}
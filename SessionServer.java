@@ -0,0 +1,440 @@
+// This file hosts many games in one process
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hosts many independent headless games in one process, each on its own thread, running in real time.
+ * Threads are virtual when the JVM supports them (Java 21 and newer), so thousands of sessions cost little memory;
+ * on older JVMs a pool of platform threads is used. Sessions share only immutable data, like the sprites.
+ * <p>
+ * A player connects over TCP and sends "JOIN level [seed]" as a line, with a level from 0 to 3, then one byte whenever
+ * the controls change (bits UP DOWN LEFT RIGHT SHOOT from the lowest). The server answers with a status line every second,
+ * or an ERROR line to a malformed greeting, and a final line with the result and the tick time of the session. Closing the connection ends the game.
+ * <p>
+ * Usage: java SessionServer [--port n] [--tps n] [--bots n] [--seconds n]
+ * With --bots, that many sessions with a random player are started in process, e.g. for load testing
+ */
+public class SessionServer
+{
+    private static final long reportPeriod = 5000000000L; // statistics are printed every 5 seconds
+    private static final int maxLevel = 3; // the hardest difficulty level
+
+    private final int tickRate;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final AtomicLong ticks = new AtomicLong();
+    private final FrameProfiler.Histogram finished = new FrameProfiler.Histogram(); // tick times of ended sessions
+    private volatile boolean running = true;
+    private volatile ServerSocket listening; // closed by stop, to end a blocked accept
+
+    /**
+     * One game, run by its own thread
+     */
+    private class Session implements Runnable
+    {
+        final int id;
+        final Renderer game;
+        final Socket socket; // null for a bot
+        // tick times, written by the session thread only
+        final FrameProfiler.Histogram tickTimes = new FrameProfiler.Histogram();
+
+        Session(int id, Renderer game, Socket socket)
+        {
+            this.id = id;
+            this.game = game;
+            this.socket = socket;
+        }
+
+        @Override
+        public void run()
+        {
+            PrintWriter out = null;
+            try
+            {
+                if(socket != null)
+                    out = new PrintWriter(socket.getOutputStream());
+                long tickNanos = 1000000000L / tickRate;
+                long next = System.nanoTime();
+                long nextStatus = next + 1000000000L;
+                while(running && !game.isGameOver())
+                {
+                    long tStart = System.nanoTime();
+                    if(game.loopHeadless(1) == 0)
+                        break; // the player left
+                    long tEnd = System.nanoTime();
+                    tickTimes.record(tEnd - tStart);
+                    ticks.incrementAndGet();
+                    if(out != null && tEnd - nextStatus >= 0)
+                    {
+                        nextStatus += 1000000000L;
+                        out.printf("STATE tick=%d score=%d round=%d%n", game.getTicks(), game.getScore(), game.getRounds());
+                        if(out.checkError())
+                            break; // the player left, checkError also flushes
+                    }
+                    next += tickNanos;
+                    long remaining = next - System.nanoTime();
+                    if(remaining > 0)
+                        Thread.sleep(remaining / 1000000L, (int)(remaining % 1000000L));
+                    else if(remaining < -1000000000L)
+                        next = System.nanoTime(); // too far behind, do not try to catch up
+                }
+                if(out != null)
+                {
+                    out.printf("OVER score=%d rounds=%d ticks=%d tick_p50_us=%.1f tick_p99_us=%.1f%n", game.getScore(),
+                        game.getRounds(), game.getTicks(), tickTimes.percentile(0.5) / 1e3, tickTimes.percentile(0.99) / 1e3);
+                    out.flush();
+                }
+            }catch(IOException e)
+            {
+                // the player left
+            }catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }finally
+            {
+                sessions.remove(this);
+                synchronized(finished)
+                {
+                    finished.add(tickTimes);
+                }
+                if(socket == null && running)
+                    startBot(); // keep the number of bots
+                if(socket != null)
+                {
+                    try
+                    {
+                        socket.close();
+                    }catch(IOException e)
+                    {
+                        // closing anyway
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The controls of a player. A thread blocks reading the socket, so that the end of the stream is seen
+     * and the session ends when the player leaves
+     */
+    private static class SocketInput implements Renderer.ControlSource, Runnable
+    {
+        private final InputStream in;
+        // written by the reading thread, read by the session thread
+        private volatile int state = 0;
+        private volatile boolean closed = false;
+
+        SocketInput(InputStream in){this.in = in;}
+
+        /**
+         * Read the controls until the connection is closed, by the player or by the end of the session
+         */
+        @Override
+        public void run()
+        {
+            try
+            {
+                int b;
+                while((b = in.read()) >= 0)
+                    state = b;
+            }catch(IOException e)
+            {
+                // the socket was closed
+            }finally
+            {
+                closed = true;
+            }
+        }
+
+        @Override
+        public boolean next(boolean[] control)
+        {
+            if(closed) return false;
+            int s = state;
+            for(int i = 0; i < control.length; i++)
+                control[i] = (s & (1 << i)) != 0;
+            return true;
+        }
+    }
+
+    /**
+     * @param tickRate logic ticks per second of every session
+     */
+    public SessionServer(int tickRate)
+    {
+        this.tickRate = tickRate;
+        ExecutorService virtualExecutor = null;
+        try
+        {
+            // Executors.newVirtualThreadPerTaskExecutor() exists since Java 21
+            virtualExecutor = (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }catch(ReflectiveOperationException e)
+        {
+            // an older JVM
+        }
+        virtual = (virtualExecutor != null);
+        executor = virtual ? virtualExecutor : Executors.newCachedThreadPool();
+    }
+
+    /**
+     * Start a session
+     * @param level
+     * @param seed
+     * @param input controls of the player
+     * @param socket the connection of the player, may be null
+     */
+    public void start(int level, long seed, Renderer.ControlSource input, Socket socket)
+    {
+        start(nextId.incrementAndGet(), level, seed, input, socket);
+    }
+
+    private void start(int id, int level, long seed, Renderer.ControlSource input, Socket socket)
+    {
+        Renderer game = new Renderer(level, true, seed);
+        game.setRates(tickRate, tickRate);
+        game.setControlSource(input);
+        Session session = new Session(id, game, socket);
+        sessions.add(session);
+        try
+        {
+            executor.execute(session);
+        }catch(RejectedExecutionException e)
+        {
+            sessions.remove(session); // the server is stopping
+            if(socket != null)
+            {
+                try
+                {
+                    socket.close(); // also ends the thread reading the controls
+                }catch(IOException closing)
+                {
+                    // closing anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * Start a session with a random player, its level and seed follow from the session id
+     */
+    public void startBot()
+    {
+        int id = nextId.incrementAndGet(); // taken once, bots started at the same time never share an id
+        start(id, id % 4, id, new BatchRunner.RandomPolicy(~id), null);
+    }
+
+    /**
+     * Accept players until the server is stopped
+     * @param port
+     * @throws IOException if the port cannot be opened
+     */
+    public void listen(int port) throws IOException
+    {
+        try(ServerSocket server = new ServerSocket(port, 1024))
+        {
+            listening = server;
+            System.out.println("Listening on port " + server.getLocalPort());
+            while(running)
+            {
+                Socket socket;
+                try
+                {
+                    socket = server.accept();
+                }catch(SocketException e)
+                {
+                    if(!running) break; // closed by stop
+                    throw e;
+                }
+                socket.setTcpNoDelay(true);
+                // the greeting is read by the session's thread, a slow player never holds up the others
+                executor.execute(() -> join(socket));
+            }
+        }
+    }
+
+    /**
+     * Read the greeting of a player and start the session
+     */
+    private void join(Socket socket)
+    {
+        try
+        {
+            InputStream in = socket.getInputStream();
+            String[] words = readLine(in).trim().split("\\s+");
+            int level = -1;
+            long seed = 0;
+            try
+            {
+                if(words.length >= 2 && words[0].equals("JOIN"))
+                {
+                    level = Integer.parseInt(words[1]);
+                    seed = (words.length > 2) ? Long.parseLong(words[2]) : System.nanoTime();
+                }
+            }catch(NumberFormatException e)
+            {
+                level = -1; // answered like any other malformed greeting
+            }
+            if(level < 0 || level > maxLevel)
+            {
+                socket.getOutputStream().write("ERROR expected JOIN level [seed]\n".getBytes());
+                socket.close();
+                return;
+            }
+            SocketInput input = new SocketInput(in);
+            start(level, seed, input, socket);
+            input.run(); // this thread reads the controls until the player leaves
+        }catch(IOException e)
+        {
+            try
+            {
+                socket.close();
+            }catch(IOException closing)
+            {
+                // closing anyway
+            }
+        }
+    }
+
+    /**
+     * Read one line byte by byte, so that no control byte after it is buffered away
+     */
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while((b = in.read()) >= 0 && b != '\n' && line.length() < 256)
+            line.append((char)b);
+        return line.toString();
+    }
+
+    /**
+     * Statistics of the sessions
+     * @param seconds since the last report
+     * @param ticksBefore total ticks at the last report
+     * @return String
+     */
+    private String report(double seconds, long ticksBefore)
+    {
+        FrameProfiler.Histogram all = new FrameProfiler.Histogram();
+        long worstP99 = 0;
+        int worstId = 0;
+        List<Session> active = new ArrayList<>(sessions);
+        for(Session session : active)
+        {
+            all.add(session.tickTimes);
+            long p99 = session.tickTimes.percentile(0.99);
+            if(p99 > worstP99)
+            {
+                worstP99 = p99;
+                worstId = session.id;
+            }
+        }
+        synchronized(finished)
+        {
+            all.add(finished);
+        }
+        return String.format("%d sessions, %.0f ticks per second, tick time p50 %.1f us p99 %.1f us, worst session #%d p99 %.1f us",
+            active.size(), (ticks.get() - ticksBefore) / seconds, all.percentile(0.5) / 1e3, all.percentile(0.99) / 1e3,
+            worstId, worstP99 / 1e3);
+    }
+
+    /**
+     * Print the statistics regularly, until the server is stopped
+     * @param seconds stop after this long, 0 to run forever
+     */
+    private void reportLoop(int seconds) throws InterruptedException
+    {
+        long tStart = System.nanoTime();
+        long tLast = tStart;
+        long ticksLast = 0;
+        while(running)
+        {
+            Thread.sleep(reportPeriod / 1000000L);
+            long tNow = System.nanoTime();
+            long ticksNow = ticks.get();
+            System.out.println(report((tNow - tLast) / 1e9, ticksLast));
+            tLast = tNow;
+            ticksLast = ticksNow;
+            if(seconds > 0 && tNow - tStart >= seconds * 1000000000L)
+                running = false;
+        }
+    }
+
+    /**
+     * Stop accepting players, and stop all sessions
+     */
+    public void stop() throws InterruptedException
+    {
+        running = false;
+        ServerSocket server = listening;
+        if(server != null)
+        {
+            try
+            {
+                server.close();
+            }catch(IOException e)
+            {
+                // closing anyway
+            }
+        }
+        executor.shutdown();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        System.setProperty("java.awt.headless", "true");
+        int port = intOption(args, "--port", 7878);
+        int bots = intOption(args, "--bots", 0);
+        int seconds = intOption(args, "--seconds", 0);
+        SessionServer server = new SessionServer(intOption(args, "--tps", 30));
+        System.out.println("Sessions run on " + (server.virtual ? "virtual threads" : "platform threads, virtual threads need Java 21"));
+        for(int i = 0; i < bots; i++)
+            server.startBot();
+        if(bots > 0)
+        {
+            // bots only, no players
+            server.reportLoop(seconds);
+            server.stop();
+            return;
+        }
+        Thread reporter = new Thread(() -> {
+            try
+            {
+                server.reportLoop(seconds);
+                server.stop(); // the time is up, this ends listen
+            }catch(InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }, "session report");
+        reporter.setDaemon(true);
+        reporter.start();
+        server.listen(port);
+        server.stop();
+    }
+
+    private static int intOption(String[] args, String name, int defaultValue)
+    {
+        for(int i = 0; i < args.length - 1; i++)
+            if(args[i].equals(name)) return Integer.parseInt(args[i+1]);
+        return defaultValue;
+    }
+}
@@ -0,0 +1,369 @@
+// This file lets spectators watch a live game over the network
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Streams the frames of a live game to spectators, over a non-blocking NIO server on its own thread.
+ * <p>
+ * Every frame is encoded once, as the cell diff of the frame trace, and shared by all spectators.
+ * The game thread only copies the cells of a frame, and never waits: when the server is behind, the frame is dropped.
+ * A spectator that falls behind has its queued frames dropped, and continues at the next keyframe.
+ * <p>
+ * Protocol: a header (magic, version, width, height), then messages of (length, type, tick, encoded cells)
+ */
+public class SpectatorServer
+{
+    private static final int magic = 0x4A534953; // "JSIS"
+    private static final int version = 1;
+    private static final byte typeKeyframe = 0;
+    private static final byte typeDiff = 1;
+    private static final int keyframeInterval = 60; // frames between two keyframes
+    private static final int maxQueuedFrames = 30; // a spectator with more frames queued skips to the next keyframe
+    private static final int poolSize = 4;
+    private static final int sendBufferSize = 65536;
+
+    /**
+     * A connected spectator
+     */
+    private static class Spectator
+    {
+        final SocketChannel channel;
+        final ArrayDeque<ByteBuffer> queue = new ArrayDeque<>();
+        boolean waitingKeyframe = true; // a new spectator starts at a keyframe
+
+        Spectator(SocketChannel channel){this.channel = channel;}
+    }
+
+    /**
+     * A frame copied by the game thread
+     */
+    private static class Captured
+    {
+        final Renderer.CellBuffer cells;
+        long tick;
+        Captured(int width, int height){cells = new Renderer.CellBuffer(width, height);}
+    }
+
+    private final Selector selector;
+    private final ServerSocketChannel server;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile int spectatorCount = 0;
+    private final BlockingQueue<Captured> free = new ArrayBlockingQueue<>(poolSize);
+    private final BlockingQueue<Captured> pending = new ArrayBlockingQueue<>(poolSize);
+    // written by the game thread
+    private long published = 0;
+    private long dropped = 0;
+    // only used by the server thread
+    private final List<Spectator> spectators = new ArrayList<>();
+    private final FrameTrace.Encoder encoder;
+    private final ByteBuffer scratch;
+    private final ByteBuffer header;
+    private long framesSinceKeyframe = keyframeInterval;
+    private boolean keyframeRequested = true;
+    private long skips = 0;
+    private long bytesSent = 0;
+    private int maxSpectators = 0;
+
+    /**
+     * Listen for spectators and start the server thread
+     * @param port
+     * @param width columns of the game
+     * @param height rows of the game
+     * @throws IOException if the port cannot be opened
+     */
+    public SpectatorServer(int port, int width, int height) throws IOException
+    {
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port), 256);
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        encoder = new FrameTrace.Encoder(width, height);
+        scratch = ByteBuffer.allocateDirect(FrameTrace.Encoder.maxFrameSize(width, height));
+        header = ByteBuffer.allocate(16).putInt(magic).putInt(version).putInt(width).putInt(height);
+        header.flip();
+        for(int i = 0; i < poolSize; i++)
+            free.add(new Captured(width, height));
+        thread = new Thread(this::serve, "spectator server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * The port the server listens on
+     * @return port
+     */
+    public int getPort(){return server.socket().getLocalPort();}
+
+    /**
+     * Publish a frame to the spectators, never blocks. Called by the game thread
+     * @param cells the content drawn by the commands
+     * @param background drawn behind the commands, may be null
+     * @param tick the tick the frame shows
+     */
+    public void publish(Renderer.CellBuffer cells, GameObject.Background background, long tick)
+    {
+        if(spectatorCount == 0) return; // nobody is watching
+        Captured frame = free.poll();
+        if(frame == null)
+        {
+            dropped++;
+            return;
+        }
+        cells.copyTo(frame.cells);
+        if(background != null)
+            background.drawLayer(frame.cells);
+        frame.tick = tick;
+        published++;
+        pending.add(frame);
+        selector.wakeup();
+    }
+
+    private void serve()
+    {
+        try
+        {
+            while(running)
+            {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while(keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(!key.isValid()) continue;
+                    if(key.isAcceptable())
+                        accept();
+                    else if(key.isWritable())
+                        flush((Spectator)key.attachment());
+                    else if(key.isReadable())
+                        read((Spectator)key.attachment());
+                }
+                Captured frame;
+                while((frame = pending.poll()) != null)
+                {
+                    broadcast(frame);
+                    free.add(frame);
+                }
+            }
+        }catch(IOException | ClosedSelectorException e)
+        {
+            if(running)
+                System.out.println("Spectator server stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException
+    {
+        SocketChannel channel;
+        while((channel = server.accept()) != null)
+        {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            // a small send buffer, so that a slow spectator is noticed in its queue instead of lagging in the kernel
+            channel.socket().setSendBufferSize(sendBufferSize);
+            // the header always fits into the empty socket buffer
+            ByteBuffer greeting = header.duplicate();
+            channel.write(greeting);
+            if(greeting.hasRemaining())
+            {
+                channel.close();
+                continue;
+            }
+            Spectator spectator = new Spectator(channel);
+            channel.register(selector, SelectionKey.OP_READ, spectator);
+            spectators.add(spectator);
+            spectatorCount = spectators.size();
+            maxSpectators = Math.max(maxSpectators, spectatorCount);
+            keyframeRequested = true;
+        }
+    }
+
+    /**
+     * Spectators send nothing, reading only notices when they leave
+     */
+    private void read(Spectator spectator)
+    {
+        scratch.clear();
+        try
+        {
+            if(spectator.channel.read(scratch) < 0)
+                disconnect(spectator);
+        }catch(IOException e)
+        {
+            disconnect(spectator);
+        }
+    }
+
+    /**
+     * Encode a frame once, and queue it for every spectator
+     */
+    private void broadcast(Captured frame)
+    {
+        boolean keyframe = keyframeRequested || framesSinceKeyframe >= keyframeInterval;
+        keyframeRequested = false;
+        framesSinceKeyframe = keyframe ? 0 : framesSinceKeyframe + 1;
+        scratch.clear();
+        encoder.encode(frame.cells, keyframe, scratch);
+        scratch.flip();
+        ByteBuffer message = ByteBuffer.allocate(13 + scratch.remaining());
+        message.putInt(9 + scratch.remaining()).put(keyframe ? typeKeyframe : typeDiff).putLong(frame.tick).put(scratch);
+        message.flip();
+        for(int i = spectators.size() - 1; i >= 0; i--)
+        {
+            Spectator spectator = spectators.get(i);
+            if(spectator.waitingKeyframe)
+            {
+                if(!keyframe) continue;
+                spectator.waitingKeyframe = false;
+            }
+            if(spectator.queue.size() >= maxQueuedFrames)
+            {
+                // too slow, keep only the frame being sent and continue at the next keyframe
+                ByteBuffer current = spectator.queue.peekFirst();
+                spectator.queue.clear();
+                if(current.position() > 0)
+                    spectator.queue.add(current);
+                spectator.waitingKeyframe = true;
+                keyframeRequested = true;
+                skips++;
+                continue;
+            }
+            spectator.queue.add(message.duplicate());
+            flush(spectator);
+        }
+    }
+
+    /**
+     * Send as much of the queue as the socket takes, without blocking
+     */
+    private void flush(Spectator spectator)
+    {
+        try
+        {
+            while(!spectator.queue.isEmpty())
+            {
+                ByteBuffer next = spectator.queue.peekFirst();
+                bytesSent += spectator.channel.write(next);
+                if(next.hasRemaining())
+                    break;
+                spectator.queue.pollFirst();
+            }
+            SelectionKey key = spectator.channel.keyFor(selector);
+            if(key != null && key.isValid())
+                key.interestOps(spectator.queue.isEmpty() ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }catch(IOException e)
+        {
+            disconnect(spectator);
+        }
+    }
+
+    private void disconnect(Spectator spectator)
+    {
+        try
+        {
+            spectator.channel.close();
+        }catch(IOException e)
+        {
+            // closing anyway
+        }
+        spectators.remove(spectator);
+        spectatorCount = spectators.size();
+    }
+
+    /**
+     * Stop the server and disconnect all spectators
+     * @return String, statistics of the server
+     */
+    public String close()
+    {
+        running = false;
+        selector.wakeup();
+        try
+        {
+            thread.join();
+            for(Spectator spectator : new ArrayList<>(spectators))
+                disconnect(spectator);
+            server.close();
+            selector.close();
+        }catch(InterruptedException e)
+        {
+            System.out.println("Thread join interrupted");
+            Thread.currentThread().interrupt();
+        }catch(IOException e)
+        {
+            System.out.println("Failed to close the spectator server: " + e.getMessage());
+        }
+        return String.format("Streamed %d frames (%d dropped) to at most %d spectators, %d bytes, %d skips to a keyframe",
+            published, dropped, maxSpectators, bytesSent, skips);
+    }
+
+    /**
+     * Watch a game in the terminal
+     * Usage: java SpectatorServer host port
+     * @param args
+     */
+    public static void main(String[] args) throws IOException
+    {
+        if(args.length < 2)
+        {
+            System.out.println("Usage: java SpectatorServer host port");
+            return;
+        }
+        System.setProperty("java.awt.headless", "true");
+        try(SocketChannel channel = SocketChannel.open(new InetSocketAddress(args[0], Integer.parseInt(args[1]))))
+        {
+            ByteBuffer in = ByteBuffer.allocate(16);
+            readFully(channel, in);
+            if(in.getInt() != magic || in.getInt() != version)
+            {
+                System.out.println("Not a JSpaceInvader spectator server");
+                return;
+            }
+            int width = in.getInt(), height = in.getInt();
+            FrameProfiler profiler = new FrameProfiler();
+            profiler.setEnabled(false);
+            TerminalDisplay display = new TerminalDisplay(width, height, profiler);
+            ByteBuffer length = ByteBuffer.allocate(4);
+            ByteBuffer message = ByteBuffer.allocate(FrameTrace.Encoder.maxFrameSize(width, height) + 9);
+            while(true)
+            {
+                length.clear();
+                if(!readFully(channel, length)) break;
+                message.clear().limit(length.getInt());
+                if(!readFully(channel, message)) break;
+                message.position(9); // type and tick
+                FrameTrace.Decoder.decode(message, display.getCells());
+                display.present(null);
+            }
+            display.dispose();
+            System.out.println("The game has ended");
+        }
+    }
+
+    /**
+     * Read until the buffer is full, then flip it
+     * @return false if the connection was closed
+     */
+    private static boolean readFully(SocketChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while(buffer.hasRemaining())
+            if(channel.read(buffer) < 0) return false;
+        buffer.flip();
+        return true;
+    }
+}
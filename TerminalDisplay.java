@@ -0,0 +1,326 @@
+// This file renders the game into a text terminal
+
+import java.awt.Color;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Shows the game in a text terminal with ANSI escape sequences, e.g. over SSH on a machine without display.
+ * Only the cells that changed since the last frame are written, as cursor moves, color changes and characters,
+ * and every frame is sent with a single write through an NIO channel.
+ * <p>
+ * The terminal is switched to raw mode with stty, so that keys are read as they are pressed.
+ * Terminals report no key releases, so a pressed key counts as held until shortly after its last auto-repeat
+ */
+public class TerminalDisplay implements Renderer.Display
+{
+    private static final byte esc = 0x1B;
+    // ANSI foreground color of every palette entry
+    private static final int[] ansiColors = {37, 31, 32, 33, 36}; // WHITE, RED, GREEN, YELLOW, CYAN
+    private static final String enterScreen = "\u001B[?1049h\u001B[?25l\u001B[0m\u001B[2J";
+    private static final String leaveScreen = "\u001B[0m\u001B[?25h\u001B[?1049l";
+
+    private final Renderer.CellBuffer cells;
+    private final Renderer.CellBuffer frame;
+    // what the terminal shows, null until the first frame
+    private Renderer.CellBuffer shown = null;
+    private String[] overlay = null;
+    private final FileChannel out;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(16384);
+    private final FrameProfiler profiler;
+    private String savedMode = null; // terminal mode before raw mode, restored at the end
+    private boolean closed = false;
+    // statistics
+    private long frames = 0;
+    private long bytes = 0;
+
+    /**
+     * Switch the terminal to raw mode and to the alternate screen
+     * @param width columns of the game
+     * @param height rows of the game
+     * @param profiler times the painting, may be disabled
+     */
+    public TerminalDisplay(int width, int height, FrameProfiler profiler)
+    {
+        cells = new Renderer.CellBuffer(width, height);
+        frame = new Renderer.CellBuffer(width, height);
+        this.profiler = profiler;
+        out = new FileOutputStream(FileDescriptor.out).getChannel();
+        savedMode = stty("-g");
+        if(savedMode != null)
+            stty("-icanon", "-echo", "min", "1");
+        // restore the terminal also when the game is interrupted, e.g. by Ctrl-C
+        Runtime.getRuntime().addShutdownHook(new Thread(this::dispose));
+        write(enterScreen);
+    }
+
+    @Override
+    public Renderer.CellBuffer getCells(){return cells;}
+
+    @Override
+    public void setOverlay(String[] overlay){this.overlay = overlay;}
+
+    /**
+     * Write the cells that changed since the last frame. Called by the game thread
+     * @param background drawn behind the commands, may be null
+     */
+    @Override
+    public synchronized void present(GameObject.Background background)
+    {
+        if(closed) return;
+        cells.copyTo(frame);
+        if(background != null)
+            background.drawLayer(frame);
+        frame.drawTopRight(overlay, Color.GREEN);
+        long t = profiler.begin(FrameProfiler.Phase.PAINT);
+        boolean full = (shown == null);
+        if(full)
+            shown = new Renderer.CellBuffer(frame.width, frame.height);
+        encode(full);
+        flush();
+        frames++;
+        profiler.end(FrameProfiler.Phase.PAINT, t);
+    }
+
+    /**
+     * Encode the changed cells into the buffer
+     * @param full encode every cell
+     */
+    private void encode(boolean full)
+    {
+        char[] chars = frame.chars;
+        byte[] colors = frame.colors;
+        int cursorX = -1, cursorY = -1; // unknown at the start of a frame
+        int color = -1;
+        for(int y = 0; y < frame.height; y++)
+        {
+            int rowStart = y * frame.width;
+            for(int x = 0; x < frame.width; x++)
+            {
+                int i = rowStart + x;
+                if(!full && chars[i] == shown.chars[i] && colors[i] == shown.colors[i])
+                    continue;
+                ensureCapacity(32);
+                if(y != cursorY || x < cursorX)
+                {
+                    // ESC [ row ; column H, both 1-based
+                    buffer.put(esc).put((byte)'[');
+                    putNumber(y + 1);
+                    buffer.put((byte)';');
+                    putNumber(x + 1);
+                    buffer.put((byte)'H');
+                }
+                else if(x > cursorX)
+                {
+                    // ESC [ n C moves forward on the same row
+                    buffer.put(esc).put((byte)'[');
+                    putNumber(x - cursorX);
+                    buffer.put((byte)'C');
+                }
+                if(colors[i] != color)
+                {
+                    color = colors[i];
+                    buffer.put(esc).put((byte)'[');
+                    putNumber(ansiColors[color]);
+                    buffer.put((byte)'m');
+                }
+                char ch = chars[i];
+                buffer.put((ch >= ' ' && ch <= '~') ? (byte)ch : (byte)'?');
+                cursorX = x + 1;
+                cursorY = y;
+                shown.chars[i] = chars[i];
+                shown.colors[i] = colors[i];
+            }
+        }
+    }
+
+    private void putNumber(int value)
+    {
+        if(value >= 10)
+            putNumber(value / 10);
+        buffer.put((byte)('0' + value % 10));
+    }
+
+    private void ensureCapacity(int needed)
+    {
+        if(buffer.remaining() >= needed) return;
+        ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+        buffer.flip();
+        larger.put(buffer);
+        buffer = larger;
+    }
+
+    private void write(String data)
+    {
+        ensureCapacity(data.length());
+        for(int i = 0; i < data.length(); i++)
+            buffer.put((byte)data.charAt(i));
+        flush();
+    }
+
+    /**
+     * Send the buffer to the terminal in one write
+     */
+    private void flush()
+    {
+        buffer.flip();
+        bytes += buffer.remaining();
+        try
+        {
+            while(buffer.hasRemaining())
+                out.write(buffer);
+        }catch(IOException e)
+        {
+            System.err.println("Failed to write to the terminal: " + e.getMessage());
+            closed = true;
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Leave the alternate screen and restore the terminal mode
+     */
+    @Override
+    public synchronized void dispose()
+    {
+        if(closed) return;
+        write(leaveScreen);
+        closed = true;
+        if(savedMode != null)
+            stty(savedMode);
+    }
+
+    @Override
+    public String statistics()
+    {
+        return String.format("Wrote %d frames to the terminal, %.1f bytes per frame", frames,
+            (frames > 0) ? (double)bytes / frames : 0.0);
+    }
+
+    /**
+     * Run stty on the controlling terminal
+     * @param args
+     * @return the output of stty, or null if it failed
+     */
+    private static String stty(String... args)
+    {
+        String[] command = new String[args.length + 1];
+        command[0] = "stty";
+        System.arraycopy(args, 0, command, 1, args.length);
+        try
+        {
+            Process process = new ProcessBuilder(command).redirectInput(new File("/dev/tty")).start();
+            String output = new String(process.getInputStream().readAllBytes()).trim();
+            return (process.waitFor() == 0) ? output : null;
+        }catch(IOException e)
+        {
+            return null;
+        }catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Reads the keys from the terminal, and turns them into the control state of each tick
+     */
+    public static class Keyboard implements Renderer.ControlSource
+    {
+        // a single press is held this long, longer than the delay before a key repeats
+        private static final long firstHoldNanos = 550000000L;
+        // once a key repeats, it is released this long after its last repeat
+        private static final long repeatHoldNanos = 120000000L;
+
+        private final Renderer renderer;
+        // time until each control is held, written by the reading thread
+        private final long[] heldUntil = new long[5];
+
+        /**
+         * Start reading the terminal on a daemon thread
+         * @param renderer started and stopped by the keys
+         */
+        public Keyboard(Renderer renderer)
+        {
+            this.renderer = renderer;
+            Thread reader = new Thread(this::read, "terminal keyboard");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        @Override
+        public boolean next(boolean[] control)
+        {
+            long tNow = System.nanoTime();
+            synchronized(heldUntil)
+            {
+                for(int i = 0; i < control.length && i < heldUntil.length; i++)
+                    control[i] = heldUntil[i] - tNow > 0;
+            }
+            return true;
+        }
+
+        private void press(int control)
+        {
+            long tNow = System.nanoTime();
+            synchronized(heldUntil)
+            {
+                boolean held = heldUntil[control] - tNow > 0;
+                heldUntil[control] = tNow + (held ? repeatHoldNanos : firstHoldNanos);
+                // a move releases the other moves, as a terminal only repeats the last key
+                if(control < 4)
+                    for(int i = 0; i < 4; i++)
+                        if(i != control) heldUntil[i] = tNow;
+            }
+        }
+
+        private void read()
+        {
+            try(InputStream in = new FileInputStream("/dev/tty"))
+            {
+                int b;
+                while((b = in.read()) >= 0)
+                {
+                    switch(b)
+                    {
+                        case 'w': case 'W': press(0); break;
+                        case 's': case 'S': press(1); break;
+                        case 'a': case 'A': press(2); break;
+                        case 'd': case 'D': press(3); break;
+                        case ' ': press(4); break;
+                        case '\r': case '\n': renderer.startGame(); break;
+                        case 'o': case 'O': renderer.toggleOverlay(); break;
+                        case 'q': case 'Q': renderer.stopGame(); break;
+                        case 0x1B:
+                            // arrow keys are ESC [ A to D, a lone ESC stops the game
+                            if(in.available() == 0)
+                            {
+                                renderer.stopGame();
+                                break;
+                            }
+                            if(in.read() != '[') break;
+                            switch(in.read())
+                            {
+                                case 'A': press(0); break;
+                                case 'B': press(1); break;
+                                case 'D': press(2); break;
+                                case 'C': press(3); break;
+                                default: break;
+                            }
+                            break;
+                        default: break;
+                    }
+                }
+            }catch(IOException e)
+            {
+                System.err.println("Failed to read the terminal: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+// This file tests the bullet pool
+
+/**
+ * Tests of GameObject.BulletPool: the live bullets stay packed at the front
+ */
+public class BulletPoolTest
+{
+    static void explodeMovesLast()
+    {
+        GameObject.BulletPool bullets = new GameObject.BulletPool(2);
+        Renderer.CommandBuffer out = new Renderer.CommandBuffer();
+        for(int i = 0; i < 5; i++)
+            bullets.add(i, 10, (i % 2 == 0) ? GameObject.MoveDirection.DIR_UP : GameObject.MoveDirection.DIR_DOWN, i % 2 == 1);
+        Check.equal(5, bullets.size(), "size after growing");
+        bullets.explode(1, out);
+        Check.equal(4, bullets.size(), "size after explode");
+        Check.equal(4, bullets.getX(1), "the last bullet takes the slot");
+        Check.that(!bullets.isEnemy(1), "and keeps its owner");
+        bullets.update(true, out);
+        Check.equal(9, bullets.getY(0), "a bullet of my ship moves up");
+        Check.equal(11, bullets.getY(3), "a bullet of an enemy moves down");
+        bullets.clear();
+        Check.equal(0, bullets.size(), "size after clear");
+    }
+}
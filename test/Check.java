@@ -0,0 +1,32 @@
+// This file holds the checks shared by the tests
+
+/**
+ * The assertions of the self-checking tests, which run without any test framework
+ */
+public class Check
+{
+    private Check(){}
+
+    /**
+     * Fail the test unless the condition holds
+     * @param condition
+     * @param message what was expected
+     */
+    public static void that(boolean condition, String message)
+    {
+        if(!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * Fail the test unless the values are equal
+     * @param expected
+     * @param actual
+     * @param message what was compared
+     */
+    public static void equal(long expected, long actual, String message)
+    {
+        if(expected != actual)
+            throw new AssertionError(message + ": expected " + expected + " but was " + actual);
+    }
+}
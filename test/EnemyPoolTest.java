@@ -0,0 +1,64 @@
+// This file tests the enemy pool
+
+/**
+ * Tests of GameObject.EnemyPool: stable removal and generational handles
+ */
+public class EnemyPoolTest
+{
+    private static GameObject.EnemyPool newPool()
+    {
+        return new GameObject.EnemyPool(2, 84, 39, new GameObject.LogicalClock(30), 1);
+    }
+
+    /**
+     * Kill an enemy by hitting it until its HP is gone
+     */
+    private static void kill(GameObject.EnemyPool pool, int i)
+    {
+        Renderer.CommandBuffer out = new Renderer.CommandBuffer();
+        while(pool.isAlive(i))
+            pool.hit(i, out);
+    }
+
+    static void removeKeepsOrder()
+    {
+        GameObject.EnemyPool pool = newPool();
+        for(int i = 0; i < 5; i++)
+            pool.add(GameObject.EnemyType.A, 10 + i, 5); // grows past the initial capacity
+        kill(pool, 1);
+        kill(pool, 3);
+        Check.equal(2, pool.removeDead(), "removed");
+        Check.equal(3, pool.size(), "size");
+        Check.equal(10, pool.getX(0), "first");
+        Check.equal(12, pool.getX(1), "second");
+        Check.equal(14, pool.getX(2), "third");
+    }
+
+    static void staleHandles()
+    {
+        GameObject.EnemyPool pool = newPool();
+        long[] handles = new long[4];
+        for(int i = 0; i < handles.length; i++)
+            handles[i] = pool.add(GameObject.EnemyType.B, 10 + 5 * i, 5);
+        for(int i = 0; i < handles.length; i++)
+        {
+            Check.equal(i, pool.indexOf(handles[i]), "index of handle " + i);
+            Check.equal(handles[i], pool.handleOf(i), "handle of index " + i);
+        }
+        kill(pool, 0);
+        pool.removeDead();
+        Check.equal(-1, pool.indexOf(handles[0]), "handle of a removed enemy");
+        // the others moved down by one, their handles follow them
+        for(int i = 1; i < handles.length; i++)
+            Check.equal(i - 1, pool.indexOf(handles[i]), "index of handle " + i + " after removal");
+        // the free slot is reused, but the stale handle must not find the new enemy
+        long reused = pool.add(GameObject.EnemyType.A, 60, 5);
+        Check.that((int)reused == (int)handles[0], "the slot of the removed enemy is reused");
+        Check.that(reused != handles[0], "a reused slot has a new generation");
+        Check.equal(-1, pool.indexOf(handles[0]), "stale handle after the slot was reused");
+        Check.equal(3, pool.indexOf(reused), "index of the new enemy");
+        pool.clear();
+        Check.equal(-1, pool.indexOf(reused), "handle after clear");
+        Check.equal(-1, pool.indexOf(-1), "no handle");
+    }
+}
@@ -0,0 +1,129 @@
+// This file tests the frame trace
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests of FrameTrace: frames survive encoding and decoding, and a recorded trace plays back the same from any frame
+ */
+public class FrameTraceTest
+{
+    private static final int width = 85, height = 40;
+
+    /**
+     * A sequence of frames that change a little from one to the next, like a game does
+     */
+    private static Renderer.CellBuffer[] frames(int count, long seed)
+    {
+        Random rand = new Random(seed);
+        Renderer.CellBuffer[] frames = new Renderer.CellBuffer[count];
+        Renderer.CellBuffer frame = new Renderer.CellBuffer(width, height);
+        for(int n = 0; n < count; n++)
+        {
+            int changes = (n % 10 == 0) ? width * height : rand.nextInt(40);
+            for(int k = 0; k < changes; k++)
+            {
+                int i = rand.nextInt(width * height);
+                frame.chars[i] = (rand.nextInt(3) == 0) ? ' ' : (char)(' ' + rand.nextInt(95));
+                frame.colors[i] = (byte)rand.nextInt(Renderer.CellBuffer.palette.length);
+            }
+            frames[n] = new Renderer.CellBuffer(width, height);
+            frame.copyTo(frames[n]);
+        }
+        return frames;
+    }
+
+    private static void checkSame(Renderer.CellBuffer expected, Renderer.CellBuffer actual, String message)
+    {
+        Check.that(Arrays.equals(expected.chars, actual.chars), message + ": characters differ");
+        Check.that(Arrays.equals(expected.colors, actual.colors), message + ": colors differ");
+    }
+
+    static void codecRoundTrip()
+    {
+        Renderer.CellBuffer[] frames = frames(100, 1);
+        FrameTrace.Encoder encoder = new FrameTrace.Encoder(width, height);
+        ByteBuffer buffer = ByteBuffer.allocate(FrameTrace.Encoder.maxFrameSize(width, height));
+        Renderer.CellBuffer decoded = new Renderer.CellBuffer(width, height);
+        for(int n = 0; n < frames.length; n++)
+        {
+            buffer.clear();
+            encoder.encode(frames[n], n % 30 == 0, buffer);
+            buffer.flip();
+            FrameTrace.Decoder.decode(buffer, decoded);
+            Check.equal(0, buffer.remaining(), "bytes left after frame " + n);
+            checkSame(frames[n], decoded, "frame " + n);
+        }
+    }
+
+    static void playerSeeks() throws Exception
+    {
+        Renderer.CellBuffer[] frames = frames(200, 2);
+        File file = File.createTempFile("frametrace", ".trace");
+        try
+        {
+            FrameTrace.Recorder recorder = new FrameTrace.Recorder(file.getPath(), width, height, 25);
+            recorder.setLossless(true);
+            for(int n = 0; n < frames.length; n++)
+                recorder.capture(frames[n], null, 1000 + n);
+            recorder.finish();
+            // the default window holds the whole file, windows of 40000 bytes split it into many
+            for(long windowSize : new long[]{1L << 30, 40000})
+            {
+                FrameTrace.Player player = new FrameTrace.Player(file.getPath(), windowSize);
+                Check.equal(frames.length, player.getFrameCount(), "frame count");
+                Random rand = new Random(3);
+                for(int k = 0; k < 300; k++)
+                {
+                    // mostly random frames, sometimes the next one, which decodes from the current frame
+                    int n = (k % 3 == 0 && k > 0) ? Math.min(k / 3, frames.length - 1) : rand.nextInt(frames.length);
+                    checkSame(frames[n], player.seek(n), "frame " + n + " with windows of " + windowSize);
+                    Check.equal(1000 + n, player.getTick(n), "tick of frame " + n);
+                }
+            }
+        }finally
+        {
+            file.delete();
+        }
+    }
+
+    static void writerFailure() throws Exception
+    {
+        Renderer.CellBuffer[] frames = frames(200, 4);
+        File file = File.createTempFile("frametrace", ".trace");
+        try
+        {
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+            FrameTrace.Recorder recorder = new FrameTrace.Recorder(channel, width, height, 25);
+            recorder.setLossless(true); // as in the headless loop, capture waits for the writer
+            Thread game = new Thread(() -> {
+                for(int n = 0; n < frames.length; n++)
+                {
+                    if(n == 20)
+                    {
+                        try
+                        {
+                            channel.close(); // every following write fails, like a full disk
+                        }catch(IOException e)
+                        {
+                            throw new RuntimeException(e);
+                        }
+                    }
+                    recorder.capture(frames[n], null, n);
+                }
+                recorder.finish();
+            });
+            game.start();
+            game.join(10000);
+            Check.that(!game.isAlive(), "the game thread waits forever for the failed writer");
+        }finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// This file tests the input queue
+
+/**
+ * Tests of InputQueue: taps are latched for one tick, events apply in order, and releases are never lost
+ */
+public class InputQueueTest
+{
+    private static final int controls = 5;
+
+    static void tapIsLatched()
+    {
+        InputQueue queue = new InputQueue(controls);
+        boolean[] control = new boolean[controls];
+        queue.offer(4, true);
+        queue.offer(4, false);
+        queue.drain(control);
+        Check.that(control[4], "a tap between two ticks counts for the next tick");
+        queue.drain(control);
+        Check.that(!control[4], "the tap is over after one tick");
+    }
+
+    static void heldUntilReleased()
+    {
+        InputQueue queue = new InputQueue(controls);
+        boolean[] control = new boolean[controls];
+        queue.offer(2, true);
+        queue.drain(control);
+        queue.drain(control);
+        Check.that(control[2], "a pressed control stays held");
+        queue.offer(2, false);
+        queue.offer(3, true);
+        queue.drain(control);
+        Check.that(control[2], "a control released during the tick still counts for that tick");
+        Check.that(control[3], "the next control is pressed");
+        queue.drain(control);
+        Check.that(!control[2], "released");
+        Check.that(control[3], "the next control is pressed");
+    }
+
+    static void releasesSurviveOverflow()
+    {
+        InputQueue queue = new InputQueue(controls);
+        boolean[] control = new boolean[controls];
+        // the game thread stalls while far more events than the queue holds come in
+        for(int i = 0; i < 2000; i++)
+            queue.offer(i % controls, i % 3 != 2);
+        for(int c = 0; c < controls; c++)
+            queue.offer(c, false);
+        queue.drain(control);
+        queue.drain(control);
+        for(int c = 0; c < controls; c++)
+            Check.that(!control[c], "control " + c + " is released after the overflow");
+        // and the queue works on afterwards
+        queue.offer(1, true);
+        queue.drain(control);
+        Check.that(control[1], "a press after the overflow");
+    }
+}
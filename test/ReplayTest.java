@@ -0,0 +1,61 @@
+// This file tests that games are deterministic and replay exactly
+
+import java.io.File;
+
+/**
+ * Tests of the determinism of the game: the same seed and input give the same checksum,
+ * and a recording replays to the recorded checksum
+ */
+public class ReplayTest
+{
+    /**
+     * Play a headless game with a random player
+     * @return checksum at the end
+     */
+    private static long play(long seed, long policySeed, int ticks, int swarmSize, int width, int height)
+    {
+        Renderer game = new Renderer(1, Renderer.DisplayMode.HEADLESS, seed, width, height);
+        game.setSwarmSize(swarmSize);
+        game.setControlSource(new BatchRunner.RandomPolicy(policySeed));
+        game.loopHeadless(ticks);
+        return game.checksum();
+    }
+
+    static void sameSeedSameGame()
+    {
+        Check.equal(play(7, 8, 2000, 0, 0, 0), play(7, 8, 2000, 0, 0, 0), "checksums of two games with seed 7");
+        Check.that(play(7, 8, 2000, 0, 0, 0) != play(7, 10, 2000, 0, 0, 0), "games with different input differ");
+    }
+
+    static void swarmSameGame()
+    {
+        // a wave this large decides in parallel
+        Check.equal(play(3, 4, 300, 3000, 400, 120), play(3, 4, 300, 3000, 400, 120), "checksums of two swarm games");
+    }
+
+    static void recordAndReplay() throws Exception
+    {
+        File file = File.createTempFile("replay", ".rec");
+        try
+        {
+            Renderer game = new Renderer(2, Renderer.DisplayMode.HEADLESS, 11, 300, 60);
+            game.setControlSource(new BatchRunner.RandomPolicy(12));
+            game.setRecorder(new Replay.Recorder(file.getPath(), 11, 2, game.getTickRate(),
+                game.getMaxPosX(), game.getMaxPosY(), game.getSwarmSize()));
+            long ticks = game.loopHeadless(1500);
+            game.close();
+            Replay.Player player = new Replay.Player(file.getPath());
+            Renderer replay = new Renderer(player.getLevel(), Renderer.DisplayMode.HEADLESS, player.getSeed(),
+                player.getMaxPosX() + 1, player.getMaxPosY() + 1);
+            replay.setRates(player.getTickRate(), 60);
+            replay.setSwarmSize(player.getSwarmSize());
+            replay.setControlSource(player);
+            Check.equal(ticks, replay.loopHeadless(0), "replayed ticks");
+            Check.equal(game.checksum(), replay.checksum(), "checksum of the replay");
+            Check.that(player.matches(replay.getTicks(), replay.checksum()), "the replay matches the recording");
+        }finally
+        {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+// This file runs all tests
+
+/**
+ * Runs the self-checking tests and reports every failure.
+ * Usage: javac -d out *.java test/*.java && java -cp out RunTests
+ */
+public class RunTests
+{
+    /**
+     * A test, fails by throwing
+     */
+    interface Test
+    {
+        void run() throws Exception;
+    }
+
+    private static int failed = 0;
+
+    public static void main(String[] args)
+    {
+        System.setProperty("java.awt.headless", "true");
+        run("EnemyPool keeps the order when removing", EnemyPoolTest::removeKeepsOrder);
+        run("EnemyPool rejects stale handles", EnemyPoolTest::staleHandles);
+        run("BulletPool keeps the live bullets in front", BulletPoolTest::explodeMovesLast);
+        run("SpatialGrid finds what a search finds", SpatialGridTest::findMatchesSearch);
+        run("SpatialGrid query finds every enemy once", SpatialGridTest::queryFindsEachOnce);
+        run("InputQueue latches a tap for one tick", InputQueueTest::tapIsLatched);
+        run("InputQueue holds a control until released", InputQueueTest::heldUntilReleased);
+        run("InputQueue never loses a release", InputQueueTest::releasesSurviveOverflow);
+        run("FrameTrace decodes what it encodes", FrameTraceTest::codecRoundTrip);
+        run("FrameTrace plays back any frame", FrameTraceTest::playerSeeks);
+        run("FrameTrace keeps the game running when writing fails", FrameTraceTest::writerFailure);
+        run("Games with the same seed and input are the same", ReplayTest::sameSeedSameGame);
+        run("Swarm games with the same seed are the same", ReplayTest::swarmSameGame);
+        run("A recording replays to its checksum", ReplayTest::recordAndReplay);
+        if(failed > 0)
+        {
+            System.out.println(failed + " test(s) failed");
+            System.exit(1);
+        }
+        System.out.println("All tests passed");
+    }
+
+    private static void run(String name, Test test)
+    {
+        try
+        {
+            test.run();
+            System.out.println("PASS " + name);
+        }catch(Exception | AssertionError e)
+        {
+            failed++;
+            System.out.println("FAIL " + name + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+// This file tests the spatial grid
+
+import java.util.Random;
+
+/**
+ * Tests of GameObject.SpatialGrid against a search through all enemies
+ */
+public class SpatialGridTest
+{
+    private static final int width = 200, height = 60;
+
+    private static GameObject.EnemyPool randomEnemies(long seed)
+    {
+        Random rand = new Random(seed);
+        GameObject.EnemyPool pool = new GameObject.EnemyPool(16, width - 1, height - 1, new GameObject.LogicalClock(30), seed);
+        GameObject.EnemyType[] types = GameObject.EnemyType.values();
+        for(int i = 0; i < 150; i++)
+            pool.add(types[rand.nextInt(types.length)], rand.nextInt(width), rand.nextInt(height)); // may overlap
+        return pool;
+    }
+
+    private static boolean covers(GameObject.EnemyPool pool, int i, int x, int y)
+    {
+        return Math.abs(x - pool.getX(i)) <= pool.getOffsetX(i) && Math.abs(y - pool.getY(i)) <= pool.getOffsetY(i);
+    }
+
+    static void findMatchesSearch()
+    {
+        GameObject.EnemyPool pool = randomEnemies(1);
+        GameObject.SpatialGrid grid = new GameObject.SpatialGrid(width, height);
+        grid.rebuild(pool);
+        Check.equal(-1, grid.find(-1, 0), "nothing is found out of the arena");
+        for(int y = 0; y < height; y++)
+            for(int x = 0; x < width; x++)
+            {
+                // the grid keeps the order of the enemies, so it finds the first one like the search does
+                int expected = -1;
+                for(int i = 0; i < pool.size() && expected < 0; i++)
+                    if(covers(pool, i, x, y)) expected = i;
+                Check.equal(expected, grid.find(x, y), "enemy at " + x + "," + y);
+            }
+    }
+
+    static void queryFindsEachOnce()
+    {
+        GameObject.EnemyPool pool = randomEnemies(2);
+        GameObject.SpatialGrid grid = new GameObject.SpatialGrid(width, height);
+        grid.rebuild(pool);
+        Random rand = new Random(3);
+        for(int k = 0; k < 200; k++)
+        {
+            int x0 = rand.nextInt(width), y0 = rand.nextInt(height);
+            int x1 = x0 + rand.nextInt(60), y1 = y0 + rand.nextInt(30);
+            int count = grid.query(x0, y0, x1, y1);
+            boolean[] found = new boolean[pool.size()];
+            for(int f = 0; f < count; f++)
+            {
+                int i = grid.getFound(f);
+                Check.that(!found[i], "enemy " + i + " found twice");
+                found[i] = true;
+            }
+            // every enemy that reaches into the area is found
+            for(int i = 0; i < pool.size(); i++)
+            {
+                boolean overlaps = pool.getX(i) + pool.getOffsetX(i) >= x0 && pool.getX(i) - pool.getOffsetX(i) <= x1
+                    && pool.getY(i) + pool.getOffsetY(i) >= y0 && pool.getY(i) - pool.getOffsetY(i) <= y1;
+                Check.that(!overlaps || found[i], "enemy " + i + " reaches into the area but was not found");
+            }
+        }
+    }
+}